@@ -0,0 +1,75 @@
+package br.com.tocka.bench;
+
+import br.com.tocka.model.ChatMessage;
+import com.google.protobuf.CodedOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construção de ChatMessage (o que o ChatController faz a cada envio e a
+ * cada recebimento) e serialização com getReadyPayload() ou writeTo num
+ * buffer reaproveitado.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatMessageBenchmark {
+
+    @Param({ "16", "1024" })
+    public int contentLength;
+
+    private String content;
+    private LocalDateTime timestamp;
+    private ChatMessage message;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder(contentLength);
+        for (int i = 0; i < contentLength; i++) {
+            text.append(i % 10 == 9 ? ' ' : (char) ('a' + i % 26));
+        }
+        content = text.toString();
+        timestamp = LocalDateTime.of(2025, 5, 20, 14, 30);
+        message = new ChatMessage("alice", "bob", content, timestamp);
+        buffer = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public ChatMessage construct() {
+        return new ChatMessage("alice", "bob", content, timestamp);
+    }
+
+    @Benchmark
+    public byte[] readyPayload() {
+        return message.getReadyPayload();
+    }
+
+    @Benchmark
+    public byte[] constructAndSerialize() {
+        return new ChatMessage("alice", "bob", content, timestamp).getReadyPayload();
+    }
+
+    @Benchmark
+    public int constructAndWriteToBuffer() throws Exception {
+        ChatMessage fresh = new ChatMessage("alice", "bob", content, timestamp);
+        CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+        fresh.writeTo(output);
+        return output.getTotalBytesWritten();
+    }
+}
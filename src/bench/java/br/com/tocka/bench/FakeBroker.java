@@ -0,0 +1,208 @@
+package br.com.tocka.bench;
+
+import br.com.tocka.rabbitmq.ChannelPool;
+import br.com.tocka.rabbitmq.ConnectionManager;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broker falso, em processo, para rodar os benchmarks sem RabbitMQ.
+ *
+ * Só a fila padrão ("" + nome da fila) é roteada: o publish entrega a
+ * mensagem na hora, na própria thread de quem publicou, ao primeiro consumer
+ * da fila. Publicações em exchanges são descartadas (como um fanout sem
+ * filas ligadas). Em modo confirm, cada publish é confirmado logo em seguida.
+ */
+public class FakeBroker {
+
+    private final Map<String, List<Consumer>> consumers = new ConcurrentHashMap<>();
+    private final AtomicInteger channelNumbers = new AtomicInteger();
+    private final AtomicLong deliveryTags = new AtomicLong();
+    private final Connection connection;
+
+    private static class Consumer {
+        final String tag;
+        final DeliverCallback callback;
+
+        Consumer(String tag, DeliverCallback callback) {
+            this.tag = tag;
+            this.callback = callback;
+        }
+    }
+
+    public FakeBroker() {
+        this.connection = (Connection) Proxy.newProxyInstance(
+                FakeBroker.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createChannel":
+                            return newChannel();
+                        case "isOpen":
+                            return true;
+                        default:
+                            return objectMethod(proxy, method, args);
+                    }
+                });
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * ConnectionManager já "conectado" a este broker, para construir
+     * Sender, Receiver e FileTransferManager como no app.
+     */
+    public ConnectionManager newConnectionManager() {
+        return new ConnectionManager("fake", 0, "guest", "guest") {
+            private ChannelPool pool;
+
+            @Override
+            public Connection getConnection() {
+                return connection;
+            }
+
+            @Override
+            public synchronized ChannelPool getChannelPool() {
+                if (pool == null) {
+                    pool = new ChannelPool(connection, getTopologyCache(), ChannelPool.DEFAULT_MAX_CHANNELS);
+                }
+                return pool;
+            }
+        };
+    }
+
+    /**
+     * Entrega uma mensagem direto ao consumer da fila, como faria o broker.
+     */
+    public void deliver(String queue, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        List<Consumer> queueConsumers = consumers.get(queue);
+        if (queueConsumers == null || queueConsumers.isEmpty()) {
+            return;
+        }
+        Consumer consumer = queueConsumers.get(0);
+        Envelope envelope = new Envelope(deliveryTags.incrementAndGet(), false, "", queue);
+        consumer.callback.handle(consumer.tag,
+                new Delivery(envelope, properties != null ? properties : new AMQP.BasicProperties(), body));
+    }
+
+    private Channel newChannel() {
+        int number = channelNumbers.incrementAndGet();
+        InvocationHandler handler = new InvocationHandler() {
+            private volatile boolean open = true;
+            private long nextPublishSeqNo;
+            private final List<ConfirmCallback> ackCallbacks = new CopyOnWriteArrayList<>();
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "basicPublish":
+                        return publish(args);
+                    case "confirmSelect":
+                        if (nextPublishSeqNo == 0) {
+                            nextPublishSeqNo = 1;
+                        }
+                        return null;
+                    case "getNextPublishSeqNo":
+                        return nextPublishSeqNo;
+                    case "addConfirmListener":
+                        if (args.length == 2) {
+                            ackCallbacks.add((ConfirmCallback) args[0]);
+                        }
+                        return null;
+                    case "basicConsume":
+                        return consume(args);
+                    case "isOpen":
+                        return open;
+                    case "close":
+                        open = false;
+                        return null;
+                    case "getChannelNumber":
+                        return number;
+                    case "getConnection":
+                        return connection;
+                    default:
+                        return objectMethod(proxy, method, args);
+                }
+            }
+
+            // basicPublish(exchange, routingKey, [mandatory, [immediate,]] props, body)
+            private Object publish(Object[] args) throws IOException {
+                String exchange = (String) args[0];
+                String routingKey = (String) args[1];
+                AMQP.BasicProperties properties = (AMQP.BasicProperties) args[args.length - 2];
+                byte[] body = (byte[]) args[args.length - 1];
+
+                long deliveryTag = 0;
+                if (nextPublishSeqNo > 0) {
+                    deliveryTag = nextPublishSeqNo++;
+                }
+                if (exchange.isEmpty()) {
+                    deliver(routingKey, properties, body);
+                }
+                if (deliveryTag > 0) {
+                    for (ConfirmCallback ack : ackCallbacks) {
+                        ack.handle(deliveryTag, false);
+                    }
+                }
+                return null;
+            }
+
+            private Object consume(Object[] args) {
+                String queue = (String) args[0];
+                for (Object arg : args) {
+                    if (arg instanceof DeliverCallback) {
+                        String tag = "bench-" + number + "-" + queue;
+                        consumers.computeIfAbsent(queue, (q) -> new CopyOnWriteArrayList<>())
+                                .add(new Consumer(tag, (DeliverCallback) arg));
+                        return tag;
+                    }
+                }
+                return null;
+            }
+        };
+        return (Channel) Proxy.newProxyInstance(FakeBroker.class.getClassLoader(), new Class<?>[] { Channel.class }, handler);
+    }
+
+    // equals/hashCode/toString e valores padrão para o resto da interface
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "FakeBroker proxy " + method.getDeclaringClass().getSimpleName();
+            default:
+                break;
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,113 @@
+package br.com.tocka.bench;
+
+import br.com.tocka.rabbitmq.ConnectionManager;
+import br.com.tocka.rabbitmq.FileTransferManager;
+import br.com.tocka.rabbitmq.Receiver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Arquivo de ponta a ponta contra o FakeBroker: sendFile (manifesto com
+ * CRC32C, leitura e publicação dos chunks) até o Receiver do próprio
+ * usuário entregar ao FileAssembler, que grava, faz fsync e avisa que o
+ * arquivo completou.
+ *
+ * O user.home aponta para um diretório temporário, então os downloads não
+ * vão para ~/chat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileTransferBenchmark {
+
+    @Param({ "1024", "1048576", "104857600" })
+    public long fileSize;
+
+    private Path home;
+    private Path source;
+    private FileTransferManager fileTransferManager;
+    private Receiver receiver;
+    private volatile CountDownLatch received;
+    private volatile String receivedName;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        home = Files.createTempDirectory("chat-bench");
+        System.setProperty("user.home", home.toString());
+
+        source = home.resolve("payload-" + fileSize + ".bin");
+        Random random = new Random(42);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(source)) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+
+        FakeBroker broker = new FakeBroker();
+        ConnectionManager connectionManager = broker.newConnectionManager();
+        fileTransferManager = new FileTransferManager(connectionManager, "bench", (receiver, fileName) -> {
+        }, 1);
+        receiver = new Receiver(connectionManager, "bench", (sender, message, timestampMicros) -> {
+        });
+        receiver.setFileCallback((sender, group, fileName, timestampMicros) -> {
+            receivedName = fileName;
+            received.countDown();
+        }, fileTransferManager.getFileAssembler());
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() {
+        received = new CountDownLatch(1);
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeDownload() throws IOException {
+        if (receivedName != null) {
+            Files.deleteIfExists(home.resolve("chat").resolve("downloads").resolve(receivedName));
+            receivedName = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receiver.close();
+        fileTransferManager.close();
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void sendAndAssemble() throws Exception {
+        fileTransferManager.sendFile("bench", source.toString());
+        if (!received.await(5, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Arquivo não chegou");
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package br.com.tocka.bench;
+
+import br.com.tocka.model.ChatMessage;
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import br.com.tocka.rabbitmq.ConnectionManager;
+import br.com.tocka.rabbitmq.Receiver;
+import br.com.tocka.rabbitmq.Sender;
+import com.rabbitmq.client.MessageProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caminho de uma mensagem de texto contra o FakeBroker:
+ * - parse: só o PayloadRequest.parseFrom
+ * - receive: entrega ao consumer do Receiver (hand-off para a thread de
+ *   ack manual, parse, dispatch e callback; com a fila cheia, mede a vazão)
+ * - send: Sender.sendMessage até a confirmação do broker
+ * - roundTrip: send com o Receiver do destinatário consumindo na mesma thread
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagePathBenchmark {
+
+    @Param({ "16", "1024" })
+    public int contentLength;
+
+    private FakeBroker broker;
+    private Sender sender;
+    private Receiver receiver;
+    private ChatMessage message;
+    private byte[] payload;
+    private Blackhole blackhole;
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole blackhole) throws Exception {
+        this.blackhole = blackhole;
+        broker = new FakeBroker();
+        ConnectionManager connectionManager = broker.newConnectionManager();
+
+        sender = new Sender(connectionManager, "fake", 15672, "guest", "guest");
+        receiver = new Receiver(connectionManager, "bob", (from, text, timestamp) -> {
+            this.blackhole.consume(from);
+            this.blackhole.consume(text);
+            this.blackhole.consume(timestamp);
+        });
+
+        StringBuilder text = new StringBuilder(contentLength);
+        for (int i = 0; i < contentLength; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        message = new ChatMessage("alice", "bob", text.toString(), LocalDateTime.of(2025, 5, 20, 14, 30));
+        payload = message.getReadyPayload();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receiver.close();
+        sender.close();
+    }
+
+    @Benchmark
+    public PayloadRequest parse() throws Exception {
+        return PayloadRequest.parseFrom(payload);
+    }
+
+    @Benchmark
+    public void receive() throws Exception {
+        broker.deliver("bob", MessageProperties.PERSISTENT_BASIC, payload);
+    }
+
+    @Benchmark
+    public Object send() throws Exception {
+        // Sem consumer em "carol": mede só serialização + publish + confirm
+        CompletableFuture<Void> confirmed = sender.sendMessage("carol", message);
+        return confirmed.get();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return sender.sendMessage("bob", message).get();
+    }
+}
@@ -0,0 +1,75 @@
+package br.com.tocka.bench;
+
+import br.com.tocka.model.Timestamps;
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Horário das mensagens: o campo legado date ("dd/MM/yyyy 'às' HH:mm"),
+ * com formatter compartilhado e com um formatter novo a cada chamada (como o
+ * Receiver fazia), contra o timestamp_micros lido por Timestamps.fromPayload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+
+    private static final String PATTERN = "dd/MM/yyyy 'às' HH:mm";
+    private static final DateTimeFormatter SHARED = DateTimeFormatter.ofPattern(PATTERN);
+
+    private final LocalDateTime timestamp = LocalDateTime.of(2025, 5, 20, 14, 30);
+    private final String formatted = timestamp.format(SHARED);
+    private final long micros = Timestamps.toMicros(timestamp);
+    private final PayloadRequest withMicros = PayloadRequest.newBuilder().setTimestampMicros(micros).build();
+    private final PayloadRequest legacy = PayloadRequest.newBuilder().setDate(formatted).build();
+
+    @Benchmark
+    public String formatShared() {
+        return timestamp.format(SHARED);
+    }
+
+    @Benchmark
+    public String formatNewFormatter() {
+        return timestamp.format(DateTimeFormatter.ofPattern(PATTERN));
+    }
+
+    @Benchmark
+    public LocalDateTime parseShared() {
+        return LocalDateTime.parse(formatted, SHARED);
+    }
+
+    @Benchmark
+    public LocalDateTime parseNewFormatter() {
+        return LocalDateTime.parse(formatted, DateTimeFormatter.ofPattern(PATTERN));
+    }
+
+    @Benchmark
+    public long fromPayloadMicros() {
+        return Timestamps.fromPayload(withMicros);
+    }
+
+    @Benchmark
+    public long fromPayloadLegacyDate() {
+        return Timestamps.fromPayload(legacy);
+    }
+
+    @Benchmark
+    public String formatMicrosForDisplay() {
+        return Timestamps.format(micros);
+    }
+}
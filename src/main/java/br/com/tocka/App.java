@@ -2,7 +2,12 @@ package br.com.tocka;
 
 import br.com.tocka.gui.ChatWindow;
 import br.com.tocka.gui.UsernameModal;
+import br.com.tocka.rabbitmq.ChannelPool;
 import br.com.tocka.rabbitmq.ConnectionManager;
+import br.com.tocka.rabbitmq.FileAssembler;
+import br.com.tocka.rabbitmq.GroupFileRouting;
+import br.com.tocka.rabbitmq.Receiver;
+import br.com.tocka.rabbitmq.UploadScheduler;
 import com.googlecode.lanterna.TerminalSize;
 import com.googlecode.lanterna.gui2.*;
 import com.googlecode.lanterna.screen.Screen;
@@ -30,6 +35,19 @@ public class App {
             System.out.println("  --rabbit-port <port>   (env: RABBIT_PORT, default: 5672)");
             System.out.println("  --rabbit-user <user>   (env: RABBIT_USER, default: guest)");
             System.out.println("  --rabbit-pass <pass>   (env: RABBIT_PASS, default: guest)");
+            System.out.println("  --management-port <port> (env: MANAGEMENT_PORT, default: 15672)");
+            System.out.println("  --upload-parallelism <n> (env: UPLOAD_PARALLELISM, default: 3)");
+            System.out.println("  --batch-window-ms <ms> (env: BATCH_WINDOW_MS, default: 0 = sem lote)");
+            System.out.println("  --batch-max <n>        (env: BATCH_MAX, default: 64)");
+            System.out.println("  --channel-pool-size <n> (env: CHANNEL_POOL_SIZE, default: 16)");
+            System.out.println("  --text-prefetch <n>    (env: TEXT_PREFETCH, default: 128)");
+            System.out.println("  --file-prefetch <n>    (env: FILE_PREFETCH, default: 8)");
+            System.out.println("  --virtual-threads      (env: VIRTUAL_THREADS, default: false; requer Java 21+)");
+            System.out.println("  --scrollback <n>       (env: SCROLLBACK, default: 5000 linhas por painel)");
+            System.out.println("  --history-max-mb <n>   (env: HISTORY_MAX_MB, default: 1024; 0 desliga o histórico local)");
+            System.out.println("  --history-retention-days <n> (env: HISTORY_RETENTION_DAYS, default: 0 = sem limite)");
+            System.out.println("  --group-files-routing <fanout|topic> (env: GROUP_FILES_ROUTING, default: fanout)");
+            System.out.println("  --membership-registry=false (env: MEMBERSHIP_REGISTRY, default: true; requer RabbitMQ 3.9+)");
             System.out.println("  --help, -h             Mostra esta ajuda e sai\n");
             return;
         }
@@ -47,6 +65,7 @@ public class App {
                 int rabbitPort = config.getInt("rabbit-port", "RABBIT_PORT", 5672);
                 String rabbitUser = config.get("rabbit-user", "RABBIT_USER", "guest");
                 String rabbitPass = config.get("rabbit-pass", "RABBIT_PASS", "guest");
+                int managementPort = config.getInt("management-port", "MANAGEMENT_PORT", 15672);
 
             connectionManager = new ConnectionManager(
                     rabbitHost,
@@ -55,10 +74,25 @@ public class App {
                     rabbitPass
             );
 
+            // Uploads seguram um channel cada; sobra pelo menos dois para o resto
+            int uploadParallelism = config.getInt("upload-parallelism", "UPLOAD_PARALLELISM", UploadScheduler.DEFAULT_PARALLELISM);
+            connectionManager.setChannelPoolSize(Math.max(
+                    config.getInt("channel-pool-size", "CHANNEL_POOL_SIZE", ChannelPool.DEFAULT_MAX_CHANNELS),
+                    uploadParallelism + 2));
+            connectionManager.setTextPrefetch(config.getInt("text-prefetch", "TEXT_PREFETCH", Receiver.DEFAULT_TEXT_PREFETCH));
+            connectionManager.setFilePrefetch(config.getInt("file-prefetch", "FILE_PREFETCH", FileAssembler.DEFAULT_FILE_PREFETCH));
+            connectionManager.setVirtualThreads(config.getBoolean("virtual-threads", "VIRTUAL_THREADS", false));
+            String groupFileRouting = config.get("group-files-routing", "GROUP_FILES_ROUTING", "fanout");
+            try {
+                connectionManager.setGroupFileRouting(GroupFileRouting.parse(groupFileRouting));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Modo de arquivos de grupo inválido: " + groupFileRouting + " (use fanout ou topic)");
+            }
+
             connectionManager.connect();
 
             TerminalSize terminalSize = screen.getTerminalSize();
-            ChatWindow.showChatWindow(gui, terminalSize, username, connectionManager.getConnection(), rabbitHost, 15672, rabbitUser, rabbitPass);
+            ChatWindow.showChatWindow(gui, terminalSize, username, connectionManager, rabbitHost, managementPort, rabbitUser, rabbitPass, config);
 
             connectionManager.close();
             screen.stopScreen();
@@ -13,9 +13,25 @@ import java.util.Map;
  *  --rabbit-port <port>   or --rabbit-port=<port>
  *  --rabbit-user <user>   or --rabbit-user=<user>
  *  --rabbit-pass <pass>   or --rabbit-pass=<pass>
+ *  --management-port <port>   or --management-port=<port>
+ *  --upload-parallelism <n>   or --upload-parallelism=<n>
+ *  --batch-window-ms <ms>     or --batch-window-ms=<ms>
+ *  --batch-max <n>            or --batch-max=<n>
+ *  --channel-pool-size <n>    or --channel-pool-size=<n>
+ *  --text-prefetch <n>        or --text-prefetch=<n>
+ *  --file-prefetch <n>        or --file-prefetch=<n>
+ *  --virtual-threads          or --virtual-threads=<true|false>
+ *  --scrollback <n>           or --scrollback=<n>
+ *  --history-max-mb <n>       or --history-max-mb=<n>
+ *  --history-retention-days <n> or --history-retention-days=<n>
+ *  --membership-registry      or --membership-registry=<true|false>
+ *  --group-files-routing <fanout|topic> or --group-files-routing=<fanout|topic>
  *
  * Supported env vars:
- *  RABBIT_HOST, RABBIT_PORT, RABBIT_USER, RABBIT_PASS
+ *  RABBIT_HOST, RABBIT_PORT, RABBIT_USER, RABBIT_PASS, MANAGEMENT_PORT,
+ *  UPLOAD_PARALLELISM, BATCH_WINDOW_MS, BATCH_MAX, CHANNEL_POOL_SIZE,
+ *  TEXT_PREFETCH, FILE_PREFETCH, VIRTUAL_THREADS, SCROLLBACK, HISTORY_MAX_MB,
+ *  HISTORY_RETENTION_DAYS, MEMBERSHIP_REGISTRY, GROUP_FILES_ROUTING
  */
 public final class Config {
 
@@ -44,6 +60,24 @@ public final class Config {
         return value;
     }
 
+    /**
+     * Flag booleana: "--flag" sozinho vale true; "--flag=false" ou a env var
+     * com "true"/"false" também funcionam.
+     */
+    public boolean getBoolean(String argKey, String envKey, boolean defaultValue) {
+        String value = args.get(argKey);
+        if (value != null && isBlank(value)) {
+            return true;
+        }
+        if (isBlank(value)) {
+            value = System.getenv(envKey);
+        }
+        if (isBlank(value)) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
     public int getInt(String argKey, String envKey, int defaultValue) {
         String value = args.get(argKey);
         if (isBlank(value)) {
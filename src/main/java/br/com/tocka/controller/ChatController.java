@@ -1,48 +1,116 @@
 package br.com.tocka.controller;
 
+import br.com.tocka.gui.MessageLog;
+import br.com.tocka.gui.MessageLogView;
 import br.com.tocka.model.ChatMessage;
+import br.com.tocka.model.HistoryEvent;
+import br.com.tocka.model.Timestamps;
 import br.com.tocka.rabbitmq.FileTransferManager;
 import br.com.tocka.rabbitmq.Receiver;
 import br.com.tocka.rabbitmq.Sender;
-import com.googlecode.lanterna.gui2.TextBox;
+import br.com.tocka.store.MessageStore;
+import br.com.tocka.store.SearchHit;
+import br.com.tocka.store.SearchIndex;
+import br.com.tocka.store.StoredMessage;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class ChatController {
 
+    // Mensagens por conversa mantidas em memória; o resto fica no histórico local
+    public static final int CONVERSATION_TAIL = 100;
+
+    // Tamanho das páginas do !history
+    public static final int DEFAULT_HISTORY_PAGE = 20;
+    public static final int MAX_HISTORY_PAGE = 500;
+
+    // Última linha dos resultados de !history/!search
+    private static final String RESULTS_FOOTER = "--- ENVIAR volta para a conversa ---";
+
+    // Painéis de conversa mantidos montados; os menos usados são refeitos do final em memória
+    public static final int MAX_CONVERSATION_VIEWS = 512;
+
     private String username;
     private String currentRecipient;
     private String currentTarget;
-    private Map<String, List<ChatMessage>> conversations;
+    private Map<String, Deque<ChatMessage>> conversations;
     private Map<String, Boolean> connectedGroups;
 
-    private TextBox messagesBox;
-    private TextBox notificationsBox;
+    private MessageLogView messagesView;
+    private MessageLogView notificationsView;
+
+    // Um log por conversa, montado na primeira vez que ela é exibida
+    private Map<String, MessageLog> conversationViews;
+    // Log exibido sem destinatário definido (avisos gerais)
+    private MessageLog generalView;
+    // Resultado de !history/!search exibido no lugar da conversa até o próximo input
+    private MessageLog resultsView;
+    private Map<String, Integer> unread;
+    private int totalUnread;
+    private Runnable unreadListener;
 
     private Sender messageSender;
     private FileTransferManager fileTransferManager;
     private Receiver messageReceiver;
+    private MessageStore messageStore;
+    private SearchIndex searchIndex;
 
-    public ChatController(String username, TextBox messagesBox, TextBox notificationsBox, Sender messageSender) {
+    // Onde o último !history parou, para o !history more continuar dali
+    private String historyConversation;
+    private long historyCursor;
+
+    // Onde rodar atualizações de UI vindas de outras threads
+    private Executor uiExecutor;
+
+    public ChatController(String username, MessageLogView messagesView, MessageLogView notificationsView, Sender messageSender) {
         this.username = username;
         this.currentRecipient = "";
         this.conversations = new HashMap<>();
         this.connectedGroups = new HashMap<>();
-        this.messagesBox = messagesBox;
-        this.notificationsBox = notificationsBox;
+        this.messagesView = messagesView;
+        this.notificationsView = notificationsView;
+        this.generalView = messagesView.getLog();
+        this.conversationViews = new LinkedHashMap<String, MessageLog>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MessageLog> eldest) {
+                return size() > MAX_CONVERSATION_VIEWS && !eldest.getKey().equals(currentRecipient);
+            }
+        };
+        this.unread = new HashMap<>();
+        this.totalUnread = 0;
+        this.unreadListener = () -> {};
         this.messageSender = messageSender;
         this.currentTarget = "";
         this.fileTransferManager = null;
         this.messageReceiver = null;
+        this.messageStore = null;
+        this.uiExecutor = Runnable::run;
+    }
+
+    public void setUiExecutor(Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Chamado (na thread da GUI) sempre que os contadores de não lidas mudam.
+     */
+    public void setUnreadListener(Runnable unreadListener) {
+        this.unreadListener = unreadListener;
     }
 
     public void setFileTransferManager(FileTransferManager fileTransferManager) {
@@ -53,8 +121,42 @@ public class ChatController {
         this.messageReceiver = messageReceiver;
     }
 
+    /**
+     * Índice de busca sobre o histórico local (usado pelo !search).
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Liga o histórico local e carrega só o final de cada conversa salva.
+     */
+    public void setMessageStore(MessageStore messageStore) {
+        this.messageStore = messageStore;
+        if (messageStore == null) {
+            return;
+        }
+
+        try {
+            for (String conversation : messageStore.getConversations()) {
+                Deque<ChatMessage> tail = new ArrayDeque<>();
+                for (StoredMessage stored : messageStore.tail(conversation, CONVERSATION_TAIL)) {
+                    tail.addLast(stored.getMessage());
+                }
+                conversations.put(conversation, tail);
+            }
+            if (!conversations.isEmpty()) {
+                addToNotifications("Histórico carregado: " + conversations.size() + " conversas");
+            }
+        } catch (IOException e) {
+            addToNotifications("Erro ao carregar histórico: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     public void processInput(String input) {
         input = input.trim();
+        closeResults();
 
         if (input.isEmpty()) {
             return;
@@ -66,12 +168,25 @@ public class ChatController {
             if (!newRecipient.isEmpty()) {
                 currentRecipient = newRecipient;
                 currentTarget = currentRecipient.substring(1);
+                showConversation(currentRecipient);
             }
             return;
         }
         else if (input.startsWith("!")){
             int index = 0;
-            if ((index = input.indexOf("addGroup", 0)) != -1){
+            if (input.startsWith("!history")){
+                showHistory(input.substring("!history".length()).trim());
+            }
+
+            else if (input.startsWith("!search")){
+                showSearch(input.substring("!search".length()).trim());
+            }
+
+            else if (input.equals("!unread")){
+                showUnread();
+            }
+
+            else if ((index = input.indexOf("addGroup", 0)) != -1){
                 String groupName = input.substring(index+("addgroup").length()).trim();
                 if (groupName.isEmpty()){
                     addToNotifications("Comando incorreto!");
@@ -122,6 +237,12 @@ public class ChatController {
                 try {
                     messageSender.getGroupMenager().removeUserFromGroup(splitted.get(1), splitted.get(2));
                     addToNotifications("Usuário " + splitted.get(1) + " removido do grupo " + splitted.get(2));
+
+                    // Se o usuário atual saiu, parar de receber os arquivos do grupo
+                    if (splitted.get(1).equals(username) && messageReceiver != null) {
+                        messageReceiver.unsubscribeFromGroupFiles(splitted.get(2));
+                        connectedGroups.remove(splitted.get(2));
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -136,32 +257,45 @@ public class ChatController {
                 }
 
                 String groupName = splitted.get(1);
-                try {
-                    List<String> users = messageSender.getGroupMenager().listUsersInGroup(groupName);
+                // A consulta à API (quando não está no cache) roda fora da thread da GUI
+                messageSender.getGroupMenager().listUsersInGroupAsync(groupName).whenCompleteAsync((users, error) -> {
+                    if (error != null) {
+                        Throwable cause = error.getCause() != null ? error.getCause() : error;
+                        addToNotifications("Erro ao listar usuários: " + cause.getMessage());
+                        return;
+                    }
                     if (users.isEmpty()) {
                         addToNotifications("Nenhum usuário no grupo: " + groupName);
                     } else {
                         String usersList = String.join(", ", users);
                         addToNotifications("Usuários em " + groupName + ": " + usersList);
                     }
-                } catch (IOException e) {
-                    addToNotifications("Erro ao listar usuários: " + e.getMessage());
-                    e.printStackTrace();
-                }
+                }, uiExecutor);
             }
 
             else if ((index = input.indexOf("listGroups", 0)) != -1){
-                try {
-                    List<String> groups = messageSender.getGroupMenager().listGroupsForUser(username);
+                messageSender.getGroupMenager().listGroupsForUserAsync(username).whenCompleteAsync((groups, error) -> {
+                    if (error != null) {
+                        Throwable cause = error.getCause() != null ? error.getCause() : error;
+                        addToNotifications("Erro ao listar grupos: " + cause.getMessage());
+                        return;
+                    }
                     if (groups.isEmpty()) {
                         addToNotifications("Você não está em nenhum grupo");
                     } else {
                         String groupsList = String.join(", ", groups);
                         addToNotifications("Seus grupos: " + groupsList);
                     }
-                } catch (IOException e) {
-                    addToNotifications("Erro ao listar grupos: " + e.getMessage());
-                    e.printStackTrace();
+                }, uiExecutor);
+            }
+
+            else if (input.equals("!uploads")){
+                if (fileTransferManager == null) {
+                    addToNotifications("Envio de arquivos indisponível");
+                    return;
+                }
+                for (String line : fileTransferManager.getUploadStatus()) {
+                    addToNotifications(line);
                 }
             }
 
@@ -227,19 +361,29 @@ public class ChatController {
         
         ChatMessage message = new ChatMessage(username, currentTarget, formattedMessage);
 
-        conversations.computeIfAbsent(currentTarget, k -> new ArrayList<>()).add(message);
+        record(currentRecipient, HistoryEvent.Type.MESSAGE_SENT, message);
 
-        addToMessages("Você enviou: " + content);
+        addToConversation(currentRecipient, formatLine(message, true), true);
 
         addToNotifications("Você enviou a mensagem para: " + currentRecipient);
 
         if (messageSender != null) {
             try {
-                if (currentRecipient.startsWith("@")){
-                    messageSender.sendMessage(currentTarget, message);
+                String recipient = currentRecipient;
+                CompletableFuture<Void> confirmation = null;
+                if (recipient.startsWith("@")){
+                    confirmation = messageSender.sendMessage(currentTarget, message);
                 }
-                else if (currentRecipient.startsWith("#")){
-                    messageSender.sendMessageToGroup(currentTarget, message);
+                else if (recipient.startsWith("#")){
+                    confirmation = messageSender.sendMessageToGroup(currentTarget, message);
+                }
+
+                if (confirmation != null) {
+                    confirmation.whenCompleteAsync((ok, error) -> {
+                        if (error != null) {
+                            addToNotifications("Mensagem para " + recipient + " não confirmada pelo broker: " + error.getMessage());
+                        }
+                    }, uiExecutor);
                 }
             } catch (IOException e) {
                 addToNotifications("Erro ao enviar mensagem: " + e.getMessage());
@@ -248,13 +392,13 @@ public class ChatController {
         }
     }
 
-    public void receiveMessage(String sender, String content, LocalDateTime timestamp) {
-        ChatMessage message = new ChatMessage(sender, username, content, timestamp);
+    public void receiveMessage(String sender, String content, long timestampMicros) {
+        ChatMessage message = new ChatMessage(sender, username, content, timestampMicros);
 
-        conversations.computeIfAbsent(sender, k -> new ArrayList<>()).add(message);
+        String conversation = conversationFor(sender, content);
+        record(conversation, HistoryEvent.Type.MESSAGE_RECEIVED, message);
 
-        String formattedMsg = String.format("(%s) %s", message.getFormattedTime(), content);
-        addToMessages(formattedMsg);
+        addToConversation(conversation, formatLine(message, false), true);
 
         addToNotifications("Mensagem recebida de " + sender);
 
@@ -262,6 +406,220 @@ public class ChatController {
         autoConnectToGroupFileExchanges(sender, content);
     }
 
+    /**
+     * Página do histórico da conversa ("@usuario" ou "#grupo") com até limit
+     * mensagens anteriores a beforeMicros (Long.MAX_VALUE = as mais recentes),
+     * da mais antiga para a mais nova. Sem histórico local, usa só o que está
+     * em memória.
+     */
+    public List<StoredMessage> getHistory(String conversation, int limit, long beforeMicros) throws IOException {
+        if (messageStore != null) {
+            return messageStore.pageBeforeTime(conversation, beforeMicros, limit);
+        }
+
+        List<StoredMessage> page = new ArrayList<>();
+        Deque<ChatMessage> tail = conversations.get(conversation);
+        if (tail != null) {
+            for (ChatMessage message : tail) {
+                if (message.getTimestampMicros() < beforeMicros) {
+                    HistoryEvent.Type type = username.equals(message.getProducer())
+                            ? HistoryEvent.Type.MESSAGE_SENT
+                            : HistoryEvent.Type.MESSAGE_RECEIVED;
+                    page.add(new StoredMessage(-1, conversation, type, message));
+                }
+            }
+        }
+        return page.subList(Math.max(0, page.size() - limit), page.size());
+    }
+
+    /**
+     * Página anterior a uma já exibida: até limit mensagens gravadas antes do
+     * offset da mensagem mais antiga dela.
+     */
+    public List<StoredMessage> getOlderHistory(String conversation, int limit, long beforeOffset) throws IOException {
+        if (messageStore == null || beforeOffset < 0) {
+            return new ArrayList<>();
+        }
+        return messageStore.pageBeforeOffset(conversation, beforeOffset, limit);
+    }
+
+    // !history [n] [antes-de]  |  !history more [n]
+    private void showHistory(String args) {
+        if (currentTarget.isEmpty()) {
+            addToNotifications("Por favor, defina um destinatário com @usuario ou #grupo");
+            return;
+        }
+
+        List<String> tokens = new ArrayList<>(Arrays.asList(args.split("\\s+")));
+        tokens.removeIf(String::isEmpty);
+
+        boolean more = !tokens.isEmpty() && tokens.get(0).equals("more");
+        if (more) {
+            tokens.remove(0);
+        }
+
+        int limit = DEFAULT_HISTORY_PAGE;
+        long beforeMicros = Long.MAX_VALUE;
+        try {
+            if (!tokens.isEmpty() && tokens.get(0).matches("\\d+")) {
+                limit = Math.max(1, Math.min(Integer.parseInt(tokens.remove(0)), MAX_HISTORY_PAGE));
+            }
+            if (!tokens.isEmpty()) {
+                if (more) {
+                    throw new IllegalArgumentException();
+                }
+                beforeMicros = Timestamps.parseUserInput(String.join(" ", tokens));
+            }
+        } catch (RuntimeException e) {
+            addToNotifications("Uso: !history [n] [dd/MM/yyyy HH:mm] ou !history more [n]");
+            return;
+        }
+
+        if (more && !currentRecipient.equals(historyConversation)) {
+            addToNotifications("Use !history antes de !history more");
+            return;
+        }
+
+        List<StoredMessage> page;
+        try {
+            page = more
+                    ? getOlderHistory(currentRecipient, limit, historyCursor)
+                    : getHistory(currentRecipient, limit, beforeMicros);
+        } catch (IOException e) {
+            addToNotifications("Erro ao ler histórico: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+
+        if (page.isEmpty()) {
+            addToResults("--- Nada mais no histórico de " + currentRecipient + " ---");
+            addToResults(RESULTS_FOOTER);
+            return;
+        }
+
+        addToResults("--- Histórico de " + currentRecipient + ": " + page.size() + " mensagens ---");
+        for (StoredMessage stored : page) {
+            addToResults(historyLine(stored));
+        }
+        if (page.size() == limit) {
+            addToResults("--- !history more para ver as anteriores ---");
+        }
+        addToResults(RESULTS_FOOTER);
+
+        historyConversation = currentRecipient;
+        historyCursor = page.get(0).getOffset();
+    }
+
+    /**
+     * Busca no histórico local. conversation ("@usuario" / "#grupo") é
+     * opcional; os resultados vêm da maior para a menor pontuação.
+     */
+    public CompletableFuture<List<SearchHit>> search(String terms, String conversation, int limit) {
+        if (searchIndex == null) {
+            CompletableFuture<List<SearchHit>> unavailable = new CompletableFuture<>();
+            unavailable.completeExceptionally(new IllegalStateException("busca indisponível sem histórico local"));
+            return unavailable;
+        }
+        return searchIndex.search(terms, conversation, limit);
+    }
+
+    // !search <termos> [@usuario|#grupo]
+    private void showSearch(String args) {
+        List<String> tokens = new ArrayList<>(Arrays.asList(args.split("\\s+")));
+        tokens.removeIf(String::isEmpty);
+
+        String conversation = null;
+        if (!tokens.isEmpty()) {
+            String last = tokens.get(tokens.size() - 1);
+            if (last.length() > 1 && (last.startsWith("@") || last.startsWith("#"))) {
+                conversation = last;
+                tokens.remove(tokens.size() - 1);
+            }
+        }
+        if (tokens.isEmpty()) {
+            addToNotifications("Uso: !search <termos> [@usuario|#grupo]");
+            return;
+        }
+
+        String terms = String.join(" ", tokens);
+        String scope = conversation == null ? "" : " em " + conversation;
+        long started = System.nanoTime();
+        search(terms, conversation, SearchIndex.DEFAULT_MAX_HITS).whenCompleteAsync((hits, error) -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                addToNotifications("Erro na busca: " + cause.getMessage());
+                return;
+            }
+
+            long millis = (System.nanoTime() - started) / 1_000_000;
+            if (hits.isEmpty()) {
+                addToResults("--- Nada encontrado para \"" + terms + "\"" + scope + " ---");
+                addToResults(RESULTS_FOOTER);
+                return;
+            }
+            addToResults("--- Busca \"" + terms + "\"" + scope + ": " + hits.size() + " resultados (" + millis + " ms) ---");
+            int rank = 1;
+            for (SearchHit hit : hits) {
+                addToResults(rank++ + ". " + hit.getMessage().getConversation() + " " + historyLine(hit.getMessage()));
+            }
+            addToResults(RESULTS_FOOTER);
+        }, uiExecutor);
+    }
+
+    private String historyLine(StoredMessage stored) {
+        return formatLine(stored.getMessage(), stored.getType() == HistoryEvent.Type.MESSAGE_SENT);
+    }
+
+    private String formatLine(ChatMessage message, boolean sent) {
+        String content = message.getContent();
+        if (sent) {
+            // Enviadas são gravadas como "<destino> diz: <texto>"
+            int start = content.indexOf(" diz: ");
+            String text = start >= 0 ? content.substring(start + " diz: ".length()) : content;
+            return String.format("(%s) Você enviou: %s", message.getFormattedTime(), text);
+        }
+        return String.format("(%s) %s", message.getFormattedTime(), content);
+    }
+
+    /**
+     * Guarda a mensagem no final da conversa em memória (limitado a
+     * CONVERSATION_TAIL) e no histórico local.
+     */
+    private void record(String conversation, HistoryEvent.Type type, ChatMessage message) {
+        Deque<ChatMessage> tail = conversations.computeIfAbsent(conversation, k -> new ArrayDeque<>());
+        tail.addLast(message);
+        if (tail.size() > CONVERSATION_TAIL) {
+            tail.removeFirst();
+        }
+
+        if (messageStore != null) {
+            try {
+                StoredMessage stored = messageStore.append(conversation, type, message);
+                if (searchIndex != null) {
+                    searchIndex.add(stored);
+                }
+            } catch (IOException e) {
+                addToNotifications("Erro ao salvar histórico: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Conversa de uma mensagem recebida: "#grupo" quando veio de um grupo
+     * (conteúdo "usuario#grupo diz: ..."), senão "@remetente".
+     */
+    private String conversationFor(String sender, String content) {
+        String groupPrefix = sender + "#";
+        if (content != null && content.startsWith(groupPrefix)) {
+            int end = content.indexOf(" diz: ", groupPrefix.length());
+            if (end > groupPrefix.length()) {
+                return "#" + content.substring(groupPrefix.length(), end);
+            }
+        }
+        return "@" + sender;
+    }
+
     private void autoConnectToGroupFileExchanges(String sender, String content) {
         // Detectar se a mensagem contém nome de grupo (padrão: #groupname)
         // Quando um usuário envia mensagem de grupo, conectar automaticamente
@@ -285,26 +643,121 @@ public class ChatController {
         }
     }
 
-    public void receiveFile(String sender, String fileName, LocalDateTime timestamp) {
-        String formattedMsg = String.format("(%s) Arquivo \"%s\" recebido de @%s !", timestamp.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy 'às' HH:mm")), fileName, sender);
-        addToMessages(formattedMsg);
-        addToNotifications("Arquivo recebido de " + sender);
+    /**
+     * Arquivo recebido: vai para a conversa do grupo ("#grupo") quando veio
+     * de um upload de grupo, senão para a de quem enviou.
+     */
+    public void receiveFile(String sender, String group, String fileName, long timestampMicros) {
+        String conversation = group.isEmpty() ? "@" + sender : "#" + group;
+        String formattedMsg = String.format("(%s) Arquivo \"%s\" recebido de @%s !", Timestamps.format(timestampMicros), fileName, sender);
+        addToConversation(conversation, formattedMsg, false);
+        addToNotifications("Arquivo recebido de " + sender + (group.isEmpty() ? "" : " em #" + group));
     }
 
     public void fileSent(String receiver, String fileName) {
         addToNotifications("Arquivo \"" + fileName + "\" foi enviado para " + receiver + " !");
     }
 
-    private void addToMessages(String text) {
-        String currentText = messagesBox.getText();
-        String newText = currentText + (currentText.isEmpty() ? "" : "\n") + text;
-        messagesBox.setText(newText);
+    /**
+     * Passa a exibir a conversa. O log dela é montado só na primeira vez (a
+     * partir do final em memória); depois, trocar de conversa é só trocar o
+     * log do painel, sem copiar nem reler o histórico.
+     */
+    private void showConversation(String conversation) {
+        messagesView.setLog(conversationView(conversation));
+
+        Integer count = unread.remove(conversation);
+        if (count != null) {
+            totalUnread -= count;
+            unreadListener.run();
+        }
+    }
+
+    private MessageLog conversationView(String conversation) {
+        MessageLog view = conversationViews.get(conversation);
+        if (view == null) {
+            view = new MessageLog(generalView.getScrollback());
+            Deque<ChatMessage> tail = conversations.get(conversation);
+            if (tail != null) {
+                for (ChatMessage message : tail) {
+                    view.append(formatLine(message, username.equals(message.getProducer())));
+                }
+            }
+            conversationViews.put(conversation, view);
+        }
+        return view;
+    }
+
+    /**
+     * Linha nova numa conversa. Se ela já foi gravada no final em memória
+     * (recorded) e o log ainda não foi montado, não precisa fazer nada: a
+     * linha aparece quando a conversa for exibida. Fora da conversa atual,
+     * conta como não lida.
+     */
+    private void addToConversation(String conversation, String line, boolean recorded) {
+        MessageLog view = recorded ? conversationViews.get(conversation) : conversationView(conversation);
+        if (view != null) {
+            view.append(line);
+        }
+
+        if (!conversation.equals(currentRecipient)) {
+            unread.merge(conversation, 1, Integer::sum);
+            totalUnread++;
+            unreadListener.run();
+        }
+    }
+
+    // !unread
+    private void showUnread() {
+        if (unread.isEmpty()) {
+            addToNotifications("Nenhuma mensagem não lida");
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(unread).entrySet()) {
+            addToNotifications(entry.getKey() + ": " + entry.getValue() + " não lidas");
+        }
+    }
+
+    public Map<String, Integer> getUnreadCounts() {
+        return Collections.unmodifiableMap(new HashMap<>(unread));
+    }
+
+    public int getTotalUnread() {
+        return totalUnread;
+    }
+
+    /**
+     * Resumo das não lidas para o topo da janela, ex.: "Não lidas: 12 em 3 conversas".
+     */
+    public String getUnreadSummary() {
+        if (totalUnread == 0) {
+            return "";
+        }
+        return "Não lidas: " + totalUnread + " em " + unread.size() + (unread.size() == 1 ? " conversa" : " conversas");
+    }
+
+    /**
+     * Linha de resultado (!history/!search). Vai para um log temporário
+     * exibido no lugar da conversa, que não é alterada; o próximo input
+     * volta a exibir a conversa.
+     */
+    private void addToResults(String text) {
+        if (resultsView == null) {
+            resultsView = new MessageLog(generalView.getScrollback());
+            messagesView.setLog(resultsView);
+        }
+        resultsView.append(text);
+    }
+
+    private void closeResults() {
+        if (resultsView != null) {
+            resultsView = null;
+            messagesView.setLog(currentTarget.isEmpty() ? generalView : conversationView(currentRecipient));
+        }
     }
 
     private void addToNotifications(String notification) {
-        String currentText = notificationsBox.getText();
-        String newText = currentText + (currentText.isEmpty() ? "" : "\n") + notification;
-        notificationsBox.setText(newText);
+        notificationsView.append(notification);
     }
 
     public String getCurrentPrompt() {
@@ -322,7 +775,7 @@ public class ChatController {
         return currentRecipient;
     }
 
-    public Map<String, List<ChatMessage>> getConversations() {
+    public Map<String, Deque<ChatMessage>> getConversations() {
         return conversations;
     }
 }
\ No newline at end of file
@@ -1,19 +1,27 @@
 package br.com.tocka.gui;
 
+import br.com.tocka.Config;
 import br.com.tocka.controller.ChatController;
+import br.com.tocka.rabbitmq.ConnectionManager;
 import br.com.tocka.rabbitmq.FileTransferManager;
+import br.com.tocka.rabbitmq.MembershipRegistry;
+import br.com.tocka.rabbitmq.MessageBatcher;
 import br.com.tocka.rabbitmq.Sender;
 import br.com.tocka.rabbitmq.Receiver;
+import br.com.tocka.rabbitmq.UploadScheduler;
+import br.com.tocka.store.MessageStore;
+import br.com.tocka.store.SearchIndex;
 import com.googlecode.lanterna.TerminalSize;
 import com.googlecode.lanterna.gui2.*;
-import com.rabbitmq.client.Connection;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 public class ChatWindow {
 
-    public static void showChatWindow(MultiWindowTextGUI gui, TerminalSize terminalSize, String username, Connection rabbitConnection, String rabbitHost, int managementPort, String rabbitUser, String rabbitPass) {
+    public static void showChatWindow(MultiWindowTextGUI gui, TerminalSize terminalSize, String username, ConnectionManager connectionManager, String rabbitHost, int managementPort, String rabbitUser, String rabbitPass, Config config) {
         int totalWidth = terminalSize.getColumns();
         int notificationsWidth = totalWidth * 30 / 100;
 
@@ -28,6 +36,8 @@ public class ChatWindow {
                 new Label("Que bom ver você de novo " + username + "!"),
                 BorderLayout.Location.CENTER
         );
+        Label unreadLabel = new Label("");
+        topPanel.addComponent(unreadLabel, BorderLayout.Location.RIGHT);
         mainPanel.addComponent(
                 topPanel.withBorder(Borders.singleLine()),
                 BorderLayout.Location.TOP
@@ -36,32 +46,24 @@ public class ChatWindow {
         // CENTER PANEL
         Panel centerPanel = new Panel(new LinearLayout(Direction.HORIZONTAL));
 
-        TextBox messagesBox = new TextBox(
-                new TerminalSize(1, 1),
-                "",
-                TextBox.Style.MULTI_LINE
-        );
-        messagesBox.setReadOnly(true);
-        messagesBox.setLayoutData(LinearLayout.createLayoutData(
+        int scrollback = config.getInt("scrollback", "SCROLLBACK", MessageLogView.DEFAULT_SCROLLBACK);
+
+        MessageLogView messagesView = new MessageLogView(scrollback);
+        messagesView.setLayoutData(LinearLayout.createLayoutData(
                 LinearLayout.Alignment.Fill,
                 LinearLayout.GrowPolicy.CanGrow
         ));
         centerPanel.addComponent(
-                messagesBox.withBorder(Borders.singleLine("MENSAGENS"))
+                messagesView.withBorder(Borders.singleLine("MENSAGENS"))
         );
 
-        TextBox notificationsBox = new TextBox(
-                new TerminalSize(1, 1),
-                "",
-                TextBox.Style.MULTI_LINE
-        );
-        notificationsBox.setReadOnly(true);
-        notificationsBox.setPreferredSize(new TerminalSize(notificationsWidth, 0));
-        notificationsBox.setLayoutData(LinearLayout.createLayoutData(
+        MessageLogView notificationsView = new MessageLogView(scrollback);
+        notificationsView.setPreferredSize(new TerminalSize(notificationsWidth, 1));
+        notificationsView.setLayoutData(LinearLayout.createLayoutData(
                 LinearLayout.Alignment.Fill
         ));
         centerPanel.addComponent(
-                notificationsBox.withBorder(Borders.singleLine("NOTIFICAÇÕES"))
+                notificationsView.withBorder(Borders.singleLine("NOTIFICAÇÕES"))
         );
 
         mainPanel.addComponent(centerPanel, BorderLayout.Location.CENTER);
@@ -69,41 +71,66 @@ public class ChatWindow {
         Sender messageSender = null;
         Receiver messageReceiver = null;
         FileTransferManager fileTransferManager = null;
+        MessageStore messageStore = null;
+        SearchIndex searchIndex = null;
+        MembershipRegistry membershipRegistry = null;
 
         try {
-            messageSender = new Sender(rabbitConnection, rabbitHost, managementPort, rabbitUser, rabbitPass);
+            messageSender = new Sender(connectionManager, rabbitHost, managementPort, rabbitUser, rabbitPass);
 
-            ChatController controller = new ChatController(username, messagesBox, notificationsBox, messageSender);
+            int batchWindowMs = config.getInt("batch-window-ms", "BATCH_WINDOW_MS", 0);
+            if (batchWindowMs > 0) {
+                messageSender.enableBatching(batchWindowMs,
+                        config.getInt("batch-max", "BATCH_MAX", MessageBatcher.DEFAULT_MAX_MESSAGES));
+            }
 
-            messageReceiver = new Receiver(rabbitConnection, username, (senderName, content, timestamp) -> {
-                gui.getGUIThread().invokeLater(() -> {
-                    controller.receiveMessage(senderName, content, timestamp);
-                });
-            });
+            ChatController controller = new ChatController(username, messagesView, notificationsView, messageSender);
+            controller.setUnreadListener(() -> unreadLabel.setText(controller.getUnreadSummary()));
 
-            fileTransferManager = new FileTransferManager(rabbitConnection, username, new FileTransferManager.FileCallback() {
-                @Override
-                public void onFileReceived(String sender, String fileName, java.time.LocalDateTime timestamp) {
-                    gui.getGUIThread().invokeLater(() -> {
-                        controller.receiveFile(sender, fileName, timestamp);
-                    });
-                }
+            // Eventos das threads do RabbitMQ chegam à GUI em lotes, um por frame
+            GuiEventBridge eventBridge = new GuiEventBridge(gui.getGUIThread());
+            // Respostas de comandos e falhas de publicação acontecem uma vez só:
+            // esperam espaço na GUI em vez de serem descartadas
+            controller.setUiExecutor(event -> putEvent(eventBridge, event));
+
+            messageReceiver = new Receiver(connectionManager, username, (senderName, content, timestamp) -> {
+                putEvent(eventBridge, () -> controller.receiveMessage(senderName, content, timestamp));
+            });
+            // O Receiver só faz o ack depois que a GUI processou as mensagens
+            messageReceiver.setAckBarrier(eventBridge::awaitProcessed);
 
+            fileTransferManager = new FileTransferManager(connectionManager, username, new FileTransferManager.FileCallback() {
                 @Override
                 public void onFileSent(String receiver, String fileName) {
-                    gui.getGUIThread().invokeLater(() -> {
-                        controller.fileSent(receiver, fileName);
-                    });
+                    putEvent(eventBridge, () -> controller.fileSent(receiver, fileName));
                 }
-            });
+            }, config.getInt("upload-parallelism", "UPLOAD_PARALLELISM", UploadScheduler.DEFAULT_PARALLELISM));
+
+            // Eventos de grupo chegam pelo mesmo dispatcher de entrada do Receiver
+            membershipRegistry = openMembershipRegistry(connectionManager, messageReceiver, username, config);
+            messageSender.getGroupMenager().setRegistry(membershipRegistry);
+            fileTransferManager.setGroupMenager(messageSender.getGroupMenager());
 
             controller.setFileTransferManager(fileTransferManager);
             controller.setMessageReceiver(messageReceiver);
-            messageReceiver.setFileCallback((sender, fileName, timestamp) -> {
-                gui.getGUIThread().invokeLater(() -> {
-                    controller.receiveFile(sender, fileName, timestamp);
-                });
-            });
+
+            messageStore = openMessageStore(username, config);
+            if (messageStore == null) {
+                messagesView.append("Histórico local desativado ou indisponível");
+            } else {
+                try {
+                    searchIndex = new SearchIndex(
+                            Paths.get(System.getProperty("user.home"), "chat", "history", username, "search"),
+                            messageStore);
+                } catch (IOException e) {
+                    System.err.println("Erro ao abrir índice de busca: " + e.getMessage());
+                }
+            }
+            controller.setMessageStore(messageStore);
+            controller.setSearchIndex(searchIndex);
+            messageReceiver.setFileCallback((sender, group, fileName, timestamp) -> {
+                putEvent(eventBridge, () -> controller.receiveFile(sender, group, fileName, timestamp));
+            }, fileTransferManager.getFileAssembler());
 
             Panel bottomPanel = new Panel(new LinearLayout(Direction.HORIZONTAL));
 
@@ -146,6 +173,15 @@ public class ChatWindow {
                 if (fileTransferManager != null) {
                     fileTransferManager.close();
                 }
+                if (membershipRegistry != null) {
+                    membershipRegistry.close();
+                }
+                if (searchIndex != null) {
+                    searchIndex.close();
+                }
+                if (messageStore != null) {
+                    messageStore.close();
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -155,4 +191,57 @@ public class ChatWindow {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Histórico em ~/chat/history/<usuário>. Com --history-max-mb 0 fica
+     * desligado; se não der para abrir (ex.: outra instância usando), o chat
+     * segue sem histórico.
+     */
+    private static MessageStore openMessageStore(String username, Config config) {
+        int maxMegabytes = config.getInt("history-max-mb", "HISTORY_MAX_MB", 1024);
+        if (maxMegabytes <= 0) {
+            return null;
+        }
+        int retentionDays = config.getInt("history-retention-days", "HISTORY_RETENTION_DAYS", 0);
+        int segmentMegabytes = MessageStore.DEFAULT_SEGMENT_BYTES / (1024 * 1024);
+
+        try {
+            return new MessageStore(
+                    Paths.get(System.getProperty("user.home"), "chat", "history", username),
+                    MessageStore.DEFAULT_SEGMENT_BYTES,
+                    Math.max(1, maxMegabytes / segmentMegabytes),
+                    TimeUnit.DAYS.toMillis(Math.max(0, retentionDays)));
+        } catch (IOException e) {
+            System.err.println("Erro ao abrir histórico: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Registro de membros dos grupos (snapshot em ~/chat/registry/<usuário>).
+     * Sem ele (desligado ou broker sem streams), as consultas de membros
+     * usam a API de gerenciamento.
+     */
+    private static MembershipRegistry openMembershipRegistry(ConnectionManager connectionManager, Receiver messageReceiver, String username, Config config) {
+        if (!config.getBoolean("membership-registry", "MEMBERSHIP_REGISTRY", true)) {
+            return null;
+        }
+        try {
+            return new MembershipRegistry(connectionManager, messageReceiver.getInboundDispatcher(), username,
+                    Paths.get(System.getProperty("user.home"), "chat", "registry", username, "membership.snapshot"));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Registro de grupos indisponível: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Eventos que não podem ser descartados: espera a GUI abrir espaço
+    private static void putEvent(GuiEventBridge eventBridge, Runnable event) {
+        try {
+            eventBridge.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrompido entregando evento à interface", e);
+        }
+    }
+}
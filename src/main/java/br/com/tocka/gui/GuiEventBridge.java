@@ -0,0 +1,218 @@
+package br.com.tocka.gui;
+
+import com.googlecode.lanterna.gui2.TextGUIThread;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ponte entre as threads do RabbitMQ e a thread da GUI.
+ *
+ * Em vez de um invokeLater por evento, os eventos entram numa fila sem lock
+ * (várias threads produzem, só a GUI consome) e a thread da GUI drena em lotes,
+ * no máximo uma vez por frame. Assim uma rajada de mensagens vira poucas
+ * tarefas na fila do Lanterna e o teclado continua sendo atendido entre os
+ * lotes.
+ *
+ * offer descarta o evento se a fila estiver cheia (conta em dropped); put
+ * espera o GUI abrir espaço. awaitProcessed bloqueia até tudo que entrou antes
+ * dele ter rodado, para quem só pode confirmar algo depois da GUI.
+ */
+public class GuiEventBridge {
+
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int DEFAULT_MAX_BATCH = 512;
+    public static final int DEFAULT_FRAMES_PER_SECOND = 30;
+
+    // Agenda o próximo lote; uma thread só para todas as pontes
+    private static final ScheduledExecutorService DRAIN_SCHEDULER = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "GuiEventBridge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final TextGUIThread guiThread;
+    private final int capacity;
+    private final int maxBatch;
+    private final long frameNanos;
+
+    private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Object spaceMonitor = new Object();
+    private volatile long lastDrainNanos;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public GuiEventBridge(TextGUIThread guiThread) {
+        this(guiThread, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_FRAMES_PER_SECOND);
+    }
+
+    public GuiEventBridge(TextGUIThread guiThread, int capacity, int maxBatch, int framesPerSecond) {
+        this.guiThread = guiThread;
+        this.capacity = Math.max(1, capacity);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.frameNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, framesPerSecond);
+        this.lastDrainNanos = System.nanoTime() - frameNanos;
+    }
+
+    /**
+     * Enfileira sem bloquear. Retorna false (e conta em dropped) se a fila
+     * estiver cheia.
+     */
+    public boolean offer(Runnable event) {
+        if (!tryEnqueue(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enfileira esperando a GUI abrir espaço se a fila estiver cheia. Na
+     * própria thread da GUI, drena um lote em vez de esperar.
+     */
+    public void put(Runnable event) throws InterruptedException {
+        while (!tryEnqueue(event)) {
+            if (isGuiThread()) {
+                drain();
+                continue;
+            }
+            synchronized (spaceMonitor) {
+                if (queued.get() >= capacity) {
+                    spaceMonitor.wait(TimeUnit.NANOSECONDS.toMillis(frameNanos) + 1);
+                }
+            }
+        }
+    }
+
+    private boolean tryEnqueue(Runnable event) {
+        int current;
+        do {
+            current = queued.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!queued.compareAndSet(current, current + 1));
+
+        events.add(event);
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Espera até que todos os eventos enfileirados antes desta chamada tenham
+     * rodado na thread da GUI. A fila é FIFO, então basta esperar um marcador.
+     */
+    public void awaitProcessed() throws InterruptedException {
+        if (isGuiThread()) {
+            while (!events.isEmpty()) {
+                drain();
+            }
+            return;
+        }
+
+        CountDownLatch marker = new CountDownLatch(1);
+        // O marcador não conta para a capacidade: nunca é descartado
+        queued.incrementAndGet();
+        events.add(marker::countDown);
+        scheduleDrain();
+        marker.await();
+    }
+
+    private boolean isGuiThread() {
+        return Thread.currentThread() == guiThread.getThread();
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        long wait = frameNanos - (System.nanoTime() - lastDrainNanos);
+        try {
+            if (wait <= 0) {
+                guiThread.invokeLater(this::drain);
+            } else {
+                DRAIN_SCHEDULER.schedule(() -> {
+                    try {
+                        guiThread.invokeLater(this::drain);
+                    } catch (IllegalStateException e) {
+                        // GUI já foi encerrada
+                        drainScheduled.set(false);
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+            }
+        } catch (IllegalStateException e) {
+            drainScheduled.set(false);
+        }
+    }
+
+    /**
+     * Roda na thread da GUI: executa até maxBatch eventos e, se sobrar,
+     * agenda o próximo lote para o frame seguinte.
+     */
+    private void drain() {
+        lastDrainNanos = System.nanoTime();
+        // Liberado antes de drenar: o que entrar agora agenda o próximo frame
+        drainScheduled.set(false);
+
+        int count = 0;
+        Runnable event;
+        while (count < maxBatch && (event = events.poll()) != null) {
+            queued.decrementAndGet();
+            count++;
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            processed.incrementAndGet();
+        }
+
+        if (count > 0) {
+            batches.incrementAndGet();
+            synchronized (spaceMonitor) {
+                spaceMonitor.notifyAll();
+            }
+        }
+
+        if (!events.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Eventos aguardando a GUI.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Eventos descartados por offer com a fila cheia.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * Lotes drenados; processed / batches dá o tamanho médio do lote.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+}
@@ -0,0 +1,128 @@
+package br.com.tocka.gui;
+
+/**
+ * Linhas de um painel (ex.: uma conversa), num ring buffer com limite de
+ * scrollback. Guarda também a posição de rolagem, então cada conversa volta
+ * para onde estava quando é exibida de novo.
+ *
+ * O array cresce sob demanda até o limite: muitas conversas curtas não
+ * reservam o scrollback inteiro cada uma. Usado só na thread da GUI.
+ */
+public class MessageLog {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int scrollback;
+    private String[] lines;
+    private int head; // posição da linha mais antiga
+    private int size;
+
+    // Quantas linhas a partir do final estão escondidas abaixo da tela (0 = seguindo o final)
+    private int scrollOffset;
+
+    // Painel que está exibindo este log, para pedir repaint
+    private MessageLogView view;
+
+    public MessageLog() {
+        this(MessageLogView.DEFAULT_SCROLLBACK);
+    }
+
+    public MessageLog(int scrollback) {
+        this.scrollback = Math.max(1, scrollback);
+        this.lines = new String[Math.min(this.scrollback, INITIAL_CAPACITY)];
+    }
+
+    /**
+     * Acrescenta o texto no final; quebras de linha viram linhas separadas.
+     */
+    public MessageLog append(String text) {
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) != -1) {
+            appendLine(text.substring(start, end));
+            start = end + 1;
+        }
+        appendLine(start == 0 ? text : text.substring(start));
+
+        if (view != null) {
+            view.requestRepaint();
+        }
+        return this;
+    }
+
+    private void appendLine(String line) {
+        if (size == lines.length && size < scrollback) {
+            grow();
+        }
+
+        if (size < lines.length) {
+            lines[(head + size) % lines.length] = line;
+            size++;
+        } else {
+            lines[head] = line;
+            head = (head + 1) % lines.length;
+        }
+
+        if (scrollOffset > 0) {
+            // Mantém na tela as mesmas linhas enquanto o usuário lê o histórico
+            scrollOffset = Math.min(scrollOffset + 1, size - 1);
+        }
+    }
+
+    private void grow() {
+        String[] grown = new String[Math.min(scrollback, lines.length * 2)];
+        for (int i = 0; i < size; i++) {
+            grown[i] = lines[(head + i) % lines.length];
+        }
+        lines = grown;
+        head = 0;
+    }
+
+    public void clear() {
+        lines = new String[Math.min(scrollback, INITIAL_CAPACITY)];
+        head = 0;
+        size = 0;
+        scrollOffset = 0;
+        if (view != null) {
+            view.requestRepaint();
+        }
+    }
+
+    public int getLineCount() {
+        return size;
+    }
+
+    /**
+     * Linha pelo índice, 0 sendo a mais antiga ainda no buffer.
+     */
+    public String getLine(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Linha " + index + " de " + size);
+        }
+        return lines[(head + index) % lines.length];
+    }
+
+    public int getScrollback() {
+        return scrollback;
+    }
+
+    int getScrollOffset() {
+        return scrollOffset;
+    }
+
+    /**
+     * Rola delta linhas para cima (positivo) ou para baixo; retorna se mudou.
+     */
+    boolean scrollBy(int delta) {
+        int newOffset = Math.max(0, Math.min(scrollOffset + delta, size - 1));
+        if (newOffset == scrollOffset) {
+            return false;
+        }
+        scrollOffset = newOffset;
+        return true;
+    }
+
+    void setView(MessageLogView view) {
+        this.view = view;
+    }
+}
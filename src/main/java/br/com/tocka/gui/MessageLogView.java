@@ -0,0 +1,201 @@
+package br.com.tocka.gui;
+
+import com.googlecode.lanterna.TerminalPosition;
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.TerminalTextUtils;
+import com.googlecode.lanterna.gui2.AbstractInteractableComponent;
+import com.googlecode.lanterna.gui2.InteractableRenderer;
+import com.googlecode.lanterna.gui2.TextGUI;
+import com.googlecode.lanterna.gui2.TextGUIGraphics;
+import com.googlecode.lanterna.gui2.TextGUIThread;
+import com.googlecode.lanterna.input.KeyStroke;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Painel de linhas só de append, no lugar do TextBox read-only.
+ *
+ * Exibe um MessageLog (ring buffer com limite de scrollback), e dá para
+ * trocar o log exibido com setLog: trocar de conversa é só trocar a
+ * referência, sem copiar linhas. O desenho só quebra e pinta as linhas que
+ * cabem na tela, e rajadas de append viram no máximo um repaint por frame.
+ *
+ * Setas, PageUp/PageDown e Home/End rolam o histórico. Com o histórico rolado,
+ * linhas novas não mexem no que está na tela; End volta a seguir o final.
+ */
+public class MessageLogView extends AbstractInteractableComponent<MessageLogView> {
+
+    public static final int DEFAULT_SCROLLBACK = 5000;
+
+    // ~30 repaints por segundo no máximo
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+
+    // Agenda os repaints adiados; uma thread só para todos os painéis
+    private static final ScheduledExecutorService REPAINT_SCHEDULER = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "RepaintScheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MessageLog log;
+    private int visibleRows = 1;
+
+    private long lastDrawNanos;
+    private boolean repaintScheduled;
+
+    public MessageLogView() {
+        this(DEFAULT_SCROLLBACK);
+    }
+
+    public MessageLogView(int scrollback) {
+        setLog(new MessageLog(scrollback));
+    }
+
+    /**
+     * Passa a exibir o log (a rolagem de cada log é guardada nele).
+     */
+    public synchronized MessageLogView setLog(MessageLog log) {
+        if (this.log != null) {
+            this.log.setView(null);
+        }
+        this.log = log;
+        log.setView(this);
+        invalidate();
+        return this;
+    }
+
+    public synchronized MessageLog getLog() {
+        return log;
+    }
+
+    /**
+     * Acrescenta o texto no log exibido; quebras de linha viram linhas separadas.
+     */
+    public synchronized MessageLogView append(String text) {
+        log.append(text);
+        return this;
+    }
+
+    public synchronized void clear() {
+        log.clear();
+    }
+
+    public synchronized int getLineCount() {
+        return log.getLineCount();
+    }
+
+    /**
+     * Marca para redesenhar, mas no máximo uma vez por frame: se o último
+     * desenho foi há menos de um frame, agenda um invalidate para o fim dele.
+     */
+    synchronized void requestRepaint() {
+        if (repaintScheduled) {
+            return;
+        }
+
+        TextGUI textGUI = getTextGUI();
+        long wait = FRAME_NANOS - (System.nanoTime() - lastDrawNanos);
+        if (textGUI == null || wait <= 0) {
+            invalidate();
+            return;
+        }
+
+        repaintScheduled = true;
+        TextGUIThread guiThread = textGUI.getGUIThread();
+        REPAINT_SCHEDULER.schedule(() -> guiThread.invokeLater(() -> {
+            synchronized (this) {
+                repaintScheduled = false;
+            }
+            invalidate();
+        }), wait, TimeUnit.NANOSECONDS);
+    }
+
+    private void scrollBy(int delta) {
+        if (log.scrollBy(delta)) {
+            invalidate();
+        }
+    }
+
+    @Override
+    protected synchronized Result handleKeyStroke(KeyStroke keyStroke) {
+        int size = log.getLineCount();
+        switch (keyStroke.getKeyType()) {
+            case ArrowUp:
+                scrollBy(1);
+                return Result.HANDLED;
+            case ArrowDown:
+                scrollBy(-1);
+                return Result.HANDLED;
+            case PageUp:
+                scrollBy(visibleRows);
+                return Result.HANDLED;
+            case PageDown:
+                scrollBy(-visibleRows);
+                return Result.HANDLED;
+            case Home:
+                scrollBy(size);
+                return Result.HANDLED;
+            case End:
+                scrollBy(-size);
+                return Result.HANDLED;
+            default:
+                return super.handleKeyStroke(keyStroke);
+        }
+    }
+
+    @Override
+    protected InteractableRenderer<MessageLogView> createDefaultRenderer() {
+        return new Renderer();
+    }
+
+    private static class Renderer implements InteractableRenderer<MessageLogView> {
+
+        @Override
+        public TerminalPosition getCursorLocation(MessageLogView component) {
+            // Sem cursor: o painel não é editável
+            return null;
+        }
+
+        @Override
+        public TerminalSize getPreferredSize(MessageLogView component) {
+            return new TerminalSize(1, 1);
+        }
+
+        @Override
+        public void drawComponent(TextGUIGraphics graphics, MessageLogView component) {
+            synchronized (component) {
+                TerminalSize area = graphics.getSize();
+                int columns = area.getColumns();
+                int rows = area.getRows();
+
+                graphics.applyThemeStyle(component.getThemeDefinition().getNormal());
+                graphics.fill(' ');
+
+                component.visibleRows = Math.max(1, rows);
+                component.lastDrawNanos = System.nanoTime();
+                if (columns <= 0 || rows <= 0) {
+                    return;
+                }
+
+                // De baixo para cima, quebrando só as linhas que aparecem
+                MessageLog log = component.log;
+                int row = rows;
+                int index = log.getLineCount() - 1 - log.getScrollOffset();
+                while (row > 0 && index >= 0) {
+                    List<String> wrapped = TerminalTextUtils.getWordWrappedText(columns, log.getLine(index));
+                    if (wrapped.isEmpty()) {
+                        row--;
+                    }
+                    for (int i = wrapped.size() - 1; i >= 0 && row > 0; i--) {
+                        row--;
+                        graphics.putString(0, row, wrapped.get(i));
+                    }
+                    index--;
+                }
+            }
+        }
+    }
+}
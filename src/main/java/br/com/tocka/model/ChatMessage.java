@@ -1,46 +1,60 @@
 package br.com.tocka.model;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Mensagem de texto do chat.
+ *
+ * O horário fica guardado em microssegundos desde a epoch (vai assim no
+ * campo timestamp_micros) e só vira texto na exibição. O conteúdo em UTF-8 e o
+ * PayloadRequest serializado também são calculados só na primeira vez que
+ * forem usados e ficam em cache; mensagens recebidas, que nunca são
+ * serializadas, não pagam nada disso.
+ */
+public class ChatMessage {
 
-import br.com.tocka.payload.PayloadProto;
-import br.com.tocka.payload.PayloadProto.Content;
-import br.com.tocka.payload.PayloadProto.PayloadRequest;
+    // Números dos campos em payload.proto (PayloadRequest e Content)
+    private static final int EMMITTER_FIELD = 1;
+    private static final int RECEIVER_FIELD = 2;
+    private static final int CONTENT_FIELD = 5;
+    private static final int TIMESTAMP_MICROS_FIELD = 7;
+    private static final int BODY_FIELD = 2;
+    private static final int NAME_FIELD = 3;
+
+    // Valor histórico de Content.name para mensagens de texto
+    private static final String TEXT_NAME = "null";
 
-public class ChatMessage {
     private String producer;
     private String consumer;
     private String content;
-    private LocalDateTime timestamp;
-    private PayloadRequest payload;
-    private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy 'às' HH:mm");
+    private long timestampMicros;
+
+    // Caches preenchidos sob demanda e descartados pelos setters
+    private byte[] contentUtf8;
+    private String formattedTime;
+    private byte[] payload;
 
     // Construtor padrão
     public ChatMessage(String producer, String consumer, String content) {
-        this(producer, consumer, content, LocalDateTime.now());
+        this(producer, consumer, content, Timestamps.nowMicros());
     }
 
     // Construtor com timestamp customizado
     public ChatMessage(String producer, String consumer, String content, LocalDateTime timestamp) {
+        this(producer, consumer, content, Timestamps.toMicros(timestamp));
+    }
+
+    // Construtor com timestamp em microssegundos desde a epoch
+    public ChatMessage(String producer, String consumer, String content, long timestampMicros) {
         this.producer = producer;
         this.consumer = consumer;
         this.content = content;
-        this.timestamp = timestamp;
-        this.payload = PayloadRequest
-                                    .newBuilder()
-                                    .setEmmitter(producer)
-                                    .setReceiver(consumer)
-                                    .setDate(timestamp.format(formatter))
-                                    .setContent(
-                                        Content
-                                            .newBuilder()
-                                            .setName("null")
-                                            .setBody(ByteString.copyFrom(content.getBytes()))
-                                            .build()
-                                    )
-                                    .build();
+        this.timestampMicros = timestampMicros;
     }
 
     // Getters
@@ -56,34 +70,131 @@ public class ChatMessage {
         return content;
     }
 
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+
     public LocalDateTime getTimestamp() {
-        return timestamp;
+        return Timestamps.toLocalDateTime(timestampMicros);
     }
 
     public String getFormattedTime() {
-        return this.timestamp.format(formatter);
+        if (formattedTime == null) {
+            formattedTime = Timestamps.format(timestampMicros);
+        }
+        return formattedTime;
+    }
+
+    /**
+     * Conteúdo em UTF-8 (calculado uma vez). Não alterar o array retornado.
+     */
+    public byte[] getContentUtf8() {
+        if (contentUtf8 == null) {
+            contentUtf8 = content.getBytes(StandardCharsets.UTF_8);
+        }
+        return contentUtf8;
     }
 
+    /**
+     * PayloadRequest serializado, pronto para publicar. É montado uma vez e
+     * reaproveitado; não alterar o array retornado.
+     */
     public byte[] getReadyPayload(){
-        return this.payload.toByteArray();
+        if (payload == null) {
+            byte[] out = new byte[getSerializedSize()];
+            CodedOutputStream output = CodedOutputStream.newInstance(out);
+            try {
+                writeTo(output);
+                output.checkNoSpaceLeft();
+            } catch (IOException e) {
+                // Array do tamanho exato: só acontece se o cálculo estiver errado
+                throw new IllegalStateException(e);
+            }
+            payload = out;
+        }
+        return payload;
+    }
+
+    /**
+     * Tamanho do PayloadRequest serializado, em bytes.
+     */
+    public int getSerializedSize() {
+        int size = 0;
+        if (!producer.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(EMMITTER_FIELD, producer);
+        }
+        if (!consumer.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(RECEIVER_FIELD, consumer);
+        }
+        int contentSize = getContentSize();
+        size += CodedOutputStream.computeTagSize(CONTENT_FIELD)
+                + CodedOutputStream.computeUInt32SizeNoTag(contentSize)
+                + contentSize;
+        if (timestampMicros != 0) {
+            size += CodedOutputStream.computeInt64Size(TIMESTAMP_MICROS_FIELD, timestampMicros);
+        }
+        return size;
+    }
+
+    /**
+     * Escreve o PayloadRequest direto no output (que pode estar sobre um
+     * buffer reaproveitado), sem montar builders nem ByteString. Mesmos
+     * bytes que PayloadRequest.toByteArray() geraria.
+     */
+    public void writeTo(CodedOutputStream output) throws IOException {
+        if (!producer.isEmpty()) {
+            output.writeString(EMMITTER_FIELD, producer);
+        }
+        if (!consumer.isEmpty()) {
+            output.writeString(RECEIVER_FIELD, consumer);
+        }
+        // Content { body = 2; name = 3 }
+        output.writeTag(CONTENT_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(getContentSize());
+        byte[] body = getContentUtf8();
+        if (body.length > 0) {
+            output.writeByteArray(BODY_FIELD, body);
+        }
+        output.writeString(NAME_FIELD, TEXT_NAME);
+
+        if (timestampMicros != 0) {
+            output.writeInt64(TIMESTAMP_MICROS_FIELD, timestampMicros);
+        }
+    }
+
+    private int getContentSize() {
+        byte[] body = getContentUtf8();
+        int size = CodedOutputStream.computeStringSize(NAME_FIELD, TEXT_NAME);
+        if (body.length > 0) {
+            size += CodedOutputStream.computeByteArraySize(BODY_FIELD, body);
+        }
+        return size;
     }
 
     // Setters
     public void setProducer(String producer) {
         this.producer = producer;
+        this.payload = null;
     }
 
     public void setConsumer(String consumer) {
         this.consumer = consumer;
+        this.payload = null;
     }
 
     public void setContent(String content) {
         this.content = content;
+        this.contentUtf8 = null;
+        this.payload = null;
     }
 
     public void setTimestamp(LocalDateTime timestamp) {
-        this.timestamp = timestamp;
+        setTimestampMicros(Timestamps.toMicros(timestamp));
     }
 
-
-}
\ No newline at end of file
+    public void setTimestampMicros(long timestampMicros) {
+        this.timestampMicros = timestampMicros;
+        this.formattedTime = null;
+        this.payload = null;
+    }
+}
@@ -1,7 +1,6 @@
 package br.com.tocka.model;
 
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 
 public class HistoryEvent {
     public enum Type {
@@ -33,8 +32,7 @@ public class HistoryEvent {
     }
 
     public String getFormattedTime() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy 'às' HH:mm");
-        return timestamp.format(formatter);
+        return timestamp.format(Timestamps.DISPLAY_FORMATTER);
     }
 
     public String getDisplayText() {
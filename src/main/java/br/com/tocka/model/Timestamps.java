@@ -0,0 +1,99 @@
+package br.com.tocka.model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+
+/**
+ * Horários das mensagens em microssegundos desde a epoch (o que vai no
+ * campo timestamp_micros do PayloadRequest). Só viram texto na hora de
+ * exibir, com o formatter compartilhado.
+ */
+public final class Timestamps {
+
+    // Formatter compartilhado (DateTimeFormatter é imutável e thread-safe)
+    public static final DateTimeFormatter DISPLAY_FORMATTER = DateTimeFormatter.ofPattern("dd/MM/yyyy 'às' HH:mm");
+
+    // Formatos aceitos quando o usuário digita uma data (ex.: !history)
+    private static final DateTimeFormatter INPUT_DATE_TIME = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+    private static final DateTimeFormatter INPUT_DATE = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+
+    private Timestamps() {
+    }
+
+    public static long nowMicros() {
+        return toMicros(Instant.now());
+    }
+
+    public static long toMicros(Instant instant) {
+        return instant.getEpochSecond() * MICROS_PER_SECOND + instant.getNano() / 1000;
+    }
+
+    public static long toMicros(LocalDateTime timestamp) {
+        return toMicros(timestamp.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    public static LocalDateTime toLocalDateTime(long micros) {
+        Instant instant = Instant.ofEpochSecond(
+                Math.floorDiv(micros, MICROS_PER_SECOND),
+                Math.floorMod(micros, MICROS_PER_SECOND) * 1000);
+        return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+    }
+
+    /**
+     * Texto para a interface: "dd/MM/yyyy às HH:mm".
+     */
+    public static String format(long micros) {
+        return toLocalDateTime(micros).format(DISPLAY_FORMATTER);
+    }
+
+    /**
+     * Data digitada pelo usuário: "dd/MM/yyyy HH:mm", "dd/MM/yyyy às HH:mm",
+     * "dd/MM/yyyy" (início do dia) ou ISO ("2025-05-20T14:30", "2025-05-20").
+     */
+    public static long parseUserInput(String text) {
+        String value = text.trim();
+        for (DateTimeFormatter formatter : new DateTimeFormatter[] { INPUT_DATE_TIME, DISPLAY_FORMATTER, DateTimeFormatter.ISO_LOCAL_DATE_TIME }) {
+            try {
+                return toMicros(LocalDateTime.parse(value, formatter));
+            } catch (DateTimeParseException e) {
+                // tenta o próximo formato
+            }
+        }
+        for (DateTimeFormatter formatter : new DateTimeFormatter[] { INPUT_DATE, DateTimeFormatter.ISO_LOCAL_DATE }) {
+            try {
+                return toMicros(LocalDate.parse(value, formatter).atStartOfDay());
+            } catch (DateTimeParseException e) {
+                // tenta o próximo formato
+            }
+        }
+        throw new DateTimeParseException("Data inválida", value, 0);
+    }
+
+    /**
+     * Horário de envio de um payload. Clientes antigos só mandam o campo date
+     * (texto, sem segundos); se nem isso vier, usa a hora atual.
+     */
+    public static long fromPayload(PayloadRequest payload) {
+        long micros = payload.getTimestampMicros();
+        if (micros != 0) {
+            return micros;
+        }
+        String date = payload.getDate();
+        if (!date.isEmpty()) {
+            try {
+                return toMicros(LocalDateTime.parse(date, DISPLAY_FORMATTER));
+            } catch (DateTimeParseException e) {
+                // cai na hora atual
+            }
+        }
+        return nowMicros();
+    }
+}
@@ -0,0 +1,187 @@
+package br.com.tocka.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool de channels da conexão, emprestados por checkout.
+ *
+ * Channel do AMQP não é thread-safe: quem precisa publicar ou declarar pega
+ * um channel com borrow(), usa só na própria thread e devolve (close() do
+ * PooledChannel, então dá para usar em try-with-resources). O pool tem um
+ * limite de channels abertos; se todos estiverem emprestados, borrow() espera.
+ *
+ * - Os channels livres ficam numa pilha: quem publica em sequência na mesma
+ *   thread costuma receber sempre o mesmo channel.
+ * - Verificação de saúde: channel fechado (pelo broker ou por queda da
+ *   conexão) é descartado no borrow e no release, e outro é aberto no lugar.
+ * - Todo channel já nasce em modo confirm com seu ConfirmPublisher, e com os
+ *   listeners que mantêm o TopologyCache em dia.
+ */
+public class ChannelPool {
+
+    public static final int DEFAULT_MAX_CHANNELS = 16;
+
+    // Quanto esperar por um channel livre antes de desistir
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+    private final Connection connection;
+    private final TopologyCache topologyCache;
+    private final int maxChannels;
+    private final Semaphore permits;
+    private final Deque<PooledChannel> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    /**
+     * Channel emprestado do pool. Deve ser usado por uma thread só até ser
+     * devolvido com close().
+     */
+    public class PooledChannel implements AutoCloseable {
+        private final Channel channel;
+        private final ConfirmPublisher publisher;
+        private boolean borrowed;
+
+        PooledChannel(Channel channel, ConfirmPublisher publisher) {
+            this.channel = channel;
+            this.publisher = publisher;
+        }
+
+        public Channel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Publicação com confirmação do broker (mensagens de texto e controle).
+         */
+        public ConfirmPublisher getPublisher() {
+            return publisher;
+        }
+
+        /**
+         * Publicação sem acompanhar a confirmação (chunks de arquivo). Passa
+         * pelo mesmo lock do ConfirmPublisher para não bagunçar os delivery
+         * tags de uma republicação que esteja acontecendo no mesmo channel.
+         */
+        public void publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            synchronized (channel) {
+                channel.basicPublish(exchange, routingKey, properties, body);
+            }
+        }
+
+        boolean isHealthy() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    public ChannelPool(Connection connection, TopologyCache topologyCache, int maxChannels) {
+        this.connection = connection;
+        this.topologyCache = topologyCache;
+        this.maxChannels = Math.max(1, maxChannels);
+        this.permits = new Semaphore(this.maxChannels, true);
+    }
+
+    /**
+     * Empresta um channel aberto, reaproveitando um livre ou abrindo um novo.
+     */
+    public PooledChannel borrow() throws IOException {
+        if (closed) {
+            throw new IOException("Pool de channels fechado");
+        }
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Nenhum channel livre após " + BORROW_TIMEOUT_SECONDS + "s (limite: " + maxChannels + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido esperando um channel", e);
+        }
+
+        try {
+            PooledChannel pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (pooled.isHealthy()) {
+                    break;
+                }
+                discard(pooled);
+            }
+            if (pooled == null) {
+                pooled = open();
+            }
+            pooled.borrowed = true;
+            return pooled;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledChannel open() throws IOException {
+        Channel channel = connection.createChannel();
+        if (channel == null) {
+            throw new IOException("Limite de channels da conexão atingido");
+        }
+
+        // Fila/exchange que sumiu no broker: tira do cache para declarar de novo
+        channel.addShutdownListener(topologyCache::onChannelShutdown);
+        channel.addReturnListener(returned -> {
+            topologyCache.invalidateQueue(returned.getRoutingKey());
+            topologyCache.invalidateExchange(returned.getExchange());
+        });
+
+        return new PooledChannel(channel, new ConfirmPublisher(channel, ConfirmPublisher.DEFAULT_WINDOW));
+    }
+
+    private void release(PooledChannel pooled) {
+        if (!pooled.borrowed) {
+            return;
+        }
+        pooled.borrowed = false;
+        if (closed || !pooled.isHealthy()) {
+            discard(pooled);
+        } else {
+            idle.offerFirst(pooled);
+        }
+        permits.release();
+    }
+
+    private static void discard(PooledChannel pooled) {
+        if (!pooled.channel.isOpen()) {
+            return;
+        }
+        try {
+            pooled.channel.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Channels abertos e parados no pool.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Fecha os channels livres; os emprestados são fechados ao serem devolvidos.
+     */
+    public void close() {
+        closed = true;
+        PooledChannel pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+}
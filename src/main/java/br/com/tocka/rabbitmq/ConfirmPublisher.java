@@ -0,0 +1,210 @@
+package br.com.tocka.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MessageProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publicação assíncrona com publisher confirms.
+ *
+ * O channel fica em modo confirmSelect e cada publish devolve um
+ * CompletableFuture, completado quando o broker confirma (ack) a mensagem.
+ * As mensagens ainda não confirmadas ficam numa janela (ConcurrentSkipListMap
+ * indexado pelo delivery tag), então várias publicações seguem em pipeline
+ * sem esperar umas pelas outras; quando a janela enche, quem publica espera.
+ * Mensagens recusadas (nack) são republicadas até MAX_RETRIES vezes.
+ *
+ * Tudo sai com mandatory: uma mensagem sem rota (ex.: fila apagada mas ainda
+ * no TopologyCache) volta por basic.return antes do ack, que o broker manda
+ * mesmo assim. Cada publish leva o header PUBLISH_ID_HEADER para o return ser
+ * ligado à sua publicação, e esse ack completa o future com erro.
+ */
+public class ConfirmPublisher {
+
+    // Máximo de mensagens publicadas e ainda não confirmadas
+    public static final int DEFAULT_WINDOW = 256;
+
+    // Tentativas de republicação após nack
+    private static final int MAX_RETRIES = 3;
+
+    // Identifica a publicação num basic.return
+    public static final String PUBLISH_ID_HEADER = "x-publish-id";
+
+    private final Channel channel;
+    private final Semaphore window;
+    private final ConcurrentSkipListMap<Long, PendingPublish> outstanding = new ConcurrentSkipListMap<>();
+    private final Map<String, PendingPublish> byPublishId = new ConcurrentHashMap<>();
+    private final AtomicLong publishIds = new AtomicLong();
+
+    // Republicar fora da thread da conexão, que é quem chama os listeners.
+    // Uma thread só para todos os channels do pool.
+    private static final ExecutorService RETRY_EXECUTOR = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "ConfirmRetry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class PendingPublish {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        final CompletableFuture<Void> future;
+        final String publishId;
+        int attempts;
+        // Voltou por basic.return: o ack que vier depois não é sucesso
+        volatile boolean returned;
+
+        PendingPublish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body, CompletableFuture<Void> future, String publishId) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+            this.future = future;
+            this.publishId = publishId;
+        }
+    }
+
+    public ConfirmPublisher(Channel channel, int windowSize) throws IOException {
+        this.channel = channel;
+        this.window = new Semaphore(windowSize);
+
+        channel.confirmSelect();
+        channel.addConfirmListener(this::handleAck, this::handleNack);
+        channel.addReturnListener(returned -> handleReturn(returned.getProperties()));
+        channel.addShutdownListener(cause -> failAll(cause));
+    }
+
+    /**
+     * Publica a mensagem e retorna um future completado quando o broker
+     * confirmar o recebimento (ou com erro se ela for recusada de vez).
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, byte[] body) {
+        return publish(exchange, routingKey, MessageProperties.PERSISTENT_BASIC, body);
+    }
+
+    public CompletableFuture<Void> publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        String publishId = String.valueOf(publishIds.incrementAndGet());
+        PendingPublish pending = new PendingPublish(exchange, routingKey, withPublishId(properties, publishId), body, future, publishId);
+        byPublishId.put(publishId, pending);
+        send(pending);
+        return future;
+    }
+
+    private static AMQP.BasicProperties withPublishId(AMQP.BasicProperties properties, String publishId) {
+        if (properties == null) {
+            properties = MessageProperties.MINIMAL_BASIC;
+        }
+        Map<String, Object> headers = properties.getHeaders() == null
+                ? new HashMap<>(2) : new HashMap<>(properties.getHeaders());
+        headers.put(PUBLISH_ID_HEADER, publishId);
+        return properties.builder().headers(headers).build();
+    }
+
+    private void send(PendingPublish pending) {
+        // Tag e publish precisam ser atômicos entre threads
+        synchronized (channel) {
+            long deliveryTag = channel.getNextPublishSeqNo();
+            outstanding.put(deliveryTag, pending);
+            try {
+                // mandatory: mensagem sem rota volta via ReturnListener
+                channel.basicPublish(pending.exchange, pending.routingKey, true, pending.properties, pending.body);
+            } catch (IOException | RuntimeException e) {
+                outstanding.remove(deliveryTag);
+                byPublishId.remove(pending.publishId);
+                window.release();
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // O broker manda o return antes do ack da mesma mensagem
+    private void handleReturn(AMQP.BasicProperties properties) {
+        Object publishId = properties == null || properties.getHeaders() == null
+                ? null : properties.getHeaders().get(PUBLISH_ID_HEADER);
+        PendingPublish pending = publishId == null ? null : byPublishId.get(publishId.toString());
+        if (pending != null) {
+            pending.returned = true;
+        }
+    }
+
+    private void handleAck(long deliveryTag, boolean multiple) {
+        for (PendingPublish pending : confirmed(deliveryTag, multiple)) {
+            byPublishId.remove(pending.publishId);
+            window.release();
+            if (pending.returned) {
+                pending.future.completeExceptionally(new IOException(
+                        "Mensagem sem rota (exchange \"" + pending.exchange + "\", routing key \"" + pending.routingKey + "\")"));
+            } else {
+                pending.future.complete(null);
+            }
+        }
+    }
+
+    private void handleNack(long deliveryTag, boolean multiple) {
+        for (PendingPublish pending : confirmed(deliveryTag, multiple)) {
+            if (pending.attempts < MAX_RETRIES) {
+                pending.attempts++;
+                // A mensagem continua ocupando sua vaga na janela
+                RETRY_EXECUTOR.execute(() -> send(pending));
+            } else {
+                byPublishId.remove(pending.publishId);
+                window.release();
+                pending.future.completeExceptionally(
+                        new IOException("Mensagem recusada pelo broker após " + MAX_RETRIES + " tentativas"));
+            }
+        }
+    }
+
+    // Remove da janela as mensagens cobertas por um ack/nack
+    private Iterable<PendingPublish> confirmed(long deliveryTag, boolean multiple) {
+        if (!multiple) {
+            PendingPublish pending = outstanding.remove(deliveryTag);
+            return pending == null ? Collections.emptyList() : Collections.singletonList(pending);
+        }
+        ConcurrentNavigableMap<Long, PendingPublish> head = outstanding.headMap(deliveryTag, true);
+        List<PendingPublish> result = new ArrayList<>(head.values());
+        head.clear();
+        return result;
+    }
+
+    private void failAll(Exception cause) {
+        for (Map.Entry<Long, PendingPublish> entry : outstanding.entrySet()) {
+            if (outstanding.remove(entry.getKey()) != null) {
+                byPublishId.remove(entry.getValue().publishId);
+                window.release();
+                entry.getValue().future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Quantidade de mensagens publicadas aguardando confirmação.
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+}
@@ -2,13 +2,24 @@ package br.com.tocka.rabbitmq;
 
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 
 public class ConnectionManager {
 
     private Connection connection;
+    private final TopologyCache topologyCache = new TopologyCache();
+    private ChannelPool channelPool;
+    private int channelPoolSize = ChannelPool.DEFAULT_MAX_CHANNELS;
+    private int textPrefetch = Receiver.DEFAULT_TEXT_PREFETCH;
+    private int filePrefetch = FileAssembler.DEFAULT_FILE_PREFETCH;
+    private boolean virtualThreads;
+    private GroupFileRouting groupFileRouting = GroupFileRouting.FANOUT;
+    private ExecutorService consumerExecutor;
     private String host;
     private int port;
     private String username;
@@ -28,7 +39,34 @@ public class ConnectionManager {
         factory.setUsername(username);
         factory.setPassword(password);
 
+        // Dispatch dos consumers em virtual threads (uma por tarefa), em vez
+        // do pool fixo de threads da biblioteca
+        if (virtualThreads) {
+            consumerExecutor = VirtualThreads.newPerTaskExecutor();
+            if (consumerExecutor != null) {
+                factory.setSharedExecutor(consumerExecutor);
+            } else {
+                System.err.println("Virtual threads exigem Java 21+; usando o pool padrão de consumers");
+            }
+        }
+
         connection = factory.newConnection();
+        channelPool = new ChannelPool(connection, topologyCache, channelPoolSize);
+
+        // Depois de uma reconexão, nada do que foi declarado é garantido
+        if (connection instanceof Recoverable) {
+            ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recoverable) {
+                    topologyCache.invalidateAll();
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recoverable) {
+                    topologyCache.invalidateAll();
+                }
+            });
+        }
         System.out.println("Conectado em " + host + ":" + port);
     }
 
@@ -36,12 +74,87 @@ public class ConnectionManager {
         return connection;
     }
 
+    public TopologyCache getTopologyCache() {
+        return topologyCache;
+    }
+
+    /**
+     * Limite de channels do pool; precisa ser definido antes do connect().
+     */
+    public void setChannelPoolSize(int channelPoolSize) {
+        this.channelPoolSize = channelPoolSize;
+    }
+
+    /**
+     * Liga o dispatch dos consumers em virtual threads (Java 21+); precisa
+     * ser definido antes do connect().
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Se os consumers estão de fato rodando em virtual threads.
+     */
+    public boolean isUsingVirtualThreads() {
+        return consumerExecutor != null;
+    }
+
+    /**
+     * Prefetch (mensagens sem ack por consumer) das filas de texto.
+     */
+    public void setTextPrefetch(int textPrefetch) {
+        this.textPrefetch = textPrefetch;
+    }
+
+    public int getTextPrefetch() {
+        return textPrefetch;
+    }
+
+    /**
+     * Prefetch (chunks sem ack por consumer) das filas de arquivo.
+     */
+    public void setFilePrefetch(int filePrefetch) {
+        this.filePrefetch = filePrefetch;
+    }
+
+    public int getFilePrefetch() {
+        return filePrefetch;
+    }
+
+    /**
+     * Modo de entrega dos arquivos de grupo (ver GroupFileRouting).
+     */
+    public void setGroupFileRouting(GroupFileRouting groupFileRouting) {
+        this.groupFileRouting = groupFileRouting;
+    }
+
+    public GroupFileRouting getGroupFileRouting() {
+        return groupFileRouting;
+    }
+
+    /**
+     * Pool de channels para publicar e declarar a partir de qualquer thread.
+     */
+    public ChannelPool getChannelPool() {
+        return channelPool;
+    }
+
     public void close() throws IOException {
 
+        if (channelPool != null) {
+            channelPool.close();
+        }
+
         if (connection != null && connection.isOpen()) {
             connection.close();
             //System.out.println("Conexão fechada");
         }
+
+        // Executor externo: a biblioteca não encerra sozinha
+        if (consumerExecutor != null) {
+            consumerExecutor.shutdown();
+        }
     }
 }
 
@@ -0,0 +1,597 @@
+package br.com.tocka.rabbitmq;
+
+import br.com.tocka.payload.PayloadProto.Content;
+import br.com.tocka.payload.PayloadProto.FileManifest;
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import br.com.tocka.payload.PayloadProto.ResumeRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Remonta em disco os arquivos recebidos em chunks.
+ *
+ * Cada chunk é gravado direto na sua posição (offset) de um arquivo temporário
+ * ".part"; quando todos os chunks de uma transferência chegam, o arquivo é
+ * renomeado para o nome final. Nada além do chunk atual fica em memória.
+ *
+ * A gravação roda numa thread própria (disk writer), fora da thread do
+ * InboundDispatcher: o handler de arquivos só enfileira o chunk e retorna,
+ * sem nunca bloquear (a mesma thread entrega as mensagens de texto). A
+ * entrega só recebe ack depois do fsync, então a fila do writer não passa da
+ * soma do prefetch dos consumers de arquivo e o broker para de empurrar
+ * mensagens enquanto o disco não dá conta.
+ *
+ * Retomada: cada chunk traz seu CRC32C e o manifesto traz o CRC de todos. O
+ * estado de cada transferência em andamento fica num arquivo ".state" ao lado
+ * do ".part" (bitmap dos chunks recebidos + manifesto), então depois de um
+ * restart ou reconexão dá para pedir ao remetente só os chunks que faltam.
+ * Uma transferência concluída deixa um arquivo vazio ".done" (tombstone), para
+ * que chunks reentregues depois de um restart não abram um ".part" novo.
+ *
+ * Os campos vêm do remetente e são validados antes de tocar o disco: o
+ * transfer_id precisa ser um UUID (vira nome de arquivo), o nome é reduzido
+ * ao último segmento e cada chunk precisa ter sequence em [0, total) e
+ * offset = sequence * chunk_size, dentro de file_size. Um payload inválido
+ * termina a entrega com erro (nack).
+ */
+public class FileAssembler {
+
+    // Entregas de arquivo não confirmadas por consumer (basicQos), se não configurado
+    public static final int DEFAULT_FILE_PREFETCH = 8;
+
+    // Limite de segurança da fila do disk writer, bem acima da soma do
+    // prefetch de arquivo; se passar disso, a entrega volta para o broker
+    private static final int WRITE_QUEUE_CAPACITY = 4096;
+
+    // Quantas transferências concluídas lembrar, para ignorar chunks atrasados
+    private static final int COMPLETED_MEMORY = 256;
+
+    // Tombstones mais velhos que isso são apagados ao abrir o diretório
+    private static final long TOMBSTONE_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private final Path downloadDirectory;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private final Set<String> completedTransfers = Collections.newSetFromMap(
+            Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > COMPLETED_MEMORY;
+                }
+            }));
+    private final ThreadPoolExecutor diskWriter;
+    private ControlListener controlListener;
+
+    public interface CompletionListener {
+        void onFileCompleted(PayloadRequest payload, Path savedFile);
+    }
+
+    /**
+     * Ponte com o FileTransferManager para as mensagens de controle de retomada.
+     */
+    public interface ControlListener {
+        // Um receptor pediu a retransmissão de chunks de um upload nosso
+        void onResumeRequested(String requester, ResumeRequest request);
+
+        // Pedir ao remetente os chunks que ainda faltam de um download
+        void sendResumeRequest(String sender, ResumeRequest request);
+    }
+
+    private static class Transfer {
+        final FileChannel out;
+        final FileChannel state;
+        final Path partPath;
+        final Path statePath;
+        final BitSet received;
+        final int total;
+        // Payload de referência (manifesto ou primeiro chunk, sem body)
+        PayloadRequest header;
+
+        Transfer(FileChannel out, FileChannel state, Path partPath, Path statePath, int total, BitSet received) {
+            this.out = out;
+            this.state = state;
+            this.partPath = partPath;
+            this.statePath = statePath;
+            this.total = total;
+            this.received = received;
+        }
+
+        boolean hasManifest() {
+            return header.getContent().hasManifest();
+        }
+
+        long fileSize() {
+            Content content = header.getContent();
+            return content.hasManifest() ? content.getManifest().getFileSize() : content.getFileSize();
+        }
+
+        int chunkSize() {
+            // Sem manifesto ainda, vale o tamanho que o remetente usa
+            return hasManifest() ? header.getContent().getManifest().getChunkSize() : FileTransferManager.CHUNK_SIZE;
+        }
+
+        int bitmapLength() {
+            return (total + 7) / 8;
+        }
+    }
+
+    public FileAssembler(String downloadDirectory) throws IOException {
+        this.downloadDirectory = Paths.get(downloadDirectory);
+        Files.createDirectories(this.downloadDirectory);
+        this.diskWriter = new ThreadPoolExecutor(
+                1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(WRITE_QUEUE_CAPACITY),
+                (r) -> {
+                    Thread t = new Thread(r, "FileDiskWriter");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        loadPendingTransfers();
+    }
+
+    public void setControlListener(ControlListener controlListener) {
+        this.controlListener = controlListener;
+    }
+
+    /**
+     * Payload de arquivo vindo do InboundDispatcher. Gravação e fsync
+     * acontecem no disk writer; a entrega só termina (e recebe ack) depois
+     * que o chunk está persistido. Em caso de erro, termina com falha (nack
+     * sem requeue); com a fila do writer cheia ou fechada, a entrega volta
+     * para o broker (retry) em vez de bloquear o dispatcher.
+     */
+    public void submit(PayloadRequest payload, InboundDispatcher.Completion completion, CompletionListener listener) {
+        try {
+            diskWriter.execute(() -> {
+                try {
+                    Path savedFile = null;
+
+                    if ("file_resume".equals(payload.getContent().getType())) {
+                        if (controlListener != null) {
+                            controlListener.onResumeRequested(payload.getEmmitter(), payload.getContent().getResume());
+                        }
+                    } else {
+                        savedFile = accept(payload);
+                    }
+                    completion.done();
+
+                    if (savedFile != null && listener != null) {
+                        listener.onFileCompleted(payload, savedFile);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    completion.fail();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            completion.retry();
+        }
+    }
+
+    /**
+     * Processa um payload de arquivo (manifesto ou chunk). Retorna o caminho
+     * final do arquivo quando ele está completo em disco, ou null se ainda
+     * faltam chunks.
+     */
+    public Path accept(PayloadRequest payload) throws IOException {
+        Content content = payload.getContent();
+
+        // Formato antigo: arquivo inteiro em uma única mensagem
+        if (content.getTotal() == 0 && !content.hasManifest()) {
+            Path target = getUniqueFileName(downloadDirectory.resolve(safeFileName(content.getName())));
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                write(out, content.getBody(), 0);
+                out.force(true);
+            }
+            return target;
+        }
+
+        String transferId = content.hasManifest() ? content.getManifest().getTransferId() : content.getTransferId();
+        validate(transferId, content);
+        if (isCompleted(transferId)) {
+            // Manifesto ou chunk reenviado de uma transferência já concluída
+            return null;
+        }
+
+        Transfer transfer;
+        try {
+            transfer = transfers.computeIfAbsent(transferId, id -> open(id, payload));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        synchronized (transfer) {
+            checkMatches(transfer, content);
+
+            if (content.hasManifest()) {
+                if (!transfer.hasManifest()) {
+                    transfer.header = payload;
+                    writeStateHeader(transfer);
+                }
+                return null;
+            }
+
+            int sequence = content.getSequence();
+            if (transfer.received.get(sequence)) {
+                // Chunk duplicado (reentrega do broker ou retransmissão)
+                return null;
+            }
+
+            if (!checksumMatches(transfer, content)) {
+                // Chunk corrompido: descarta e pede de novo só esse chunk
+                System.err.println("CRC32C inválido no chunk " + sequence + " de " + content.getName());
+                requestResume(transfer, ResumeRequest.newBuilder()
+                        .setTransferId(transferId)
+                        .setFromSequence(transfer.total)
+                        .addMissing(sequence)
+                        .build());
+                return null;
+            }
+
+            write(transfer.out, content.getBody(), content.getOffset());
+            transfer.out.force(false);
+            markReceived(transfer, sequence);
+
+            if (transfer.received.cardinality() < transfer.total) {
+                return null;
+            }
+
+            transfers.remove(transferId);
+            transfer.out.close();
+            transfer.state.close();
+            Path target = getUniqueFileName(downloadDirectory.resolve(safeFileName(content.getName())));
+            Files.move(transfer.partPath, target);
+            markCompleted(transferId);
+            Files.deleteIfExists(transfer.statePath);
+            return target;
+        }
+    }
+
+    private Path tombstonePath(String transferId) {
+        return downloadDirectory.resolve("." + transferId + ".done");
+    }
+
+    private boolean isCompleted(String transferId) {
+        return completedTransfers.contains(transferId) || Files.exists(tombstonePath(transferId));
+    }
+
+    private void markCompleted(String transferId) throws IOException {
+        completedTransfers.add(transferId);
+        try (FileChannel tombstone = FileChannel.open(tombstonePath(transferId),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            tombstone.force(true);
+        }
+    }
+
+    /**
+     * Confere os campos do manifesto ou chunk que não dependem do estado da
+     * transferência.
+     */
+    private static void validate(String transferId, Content content) throws IOException {
+        if (!isUuid(transferId)) {
+            throw new IOException("transfer_id inválido: " + transferId);
+        }
+
+        long fileSize;
+        int chunkSize;
+        int total;
+        if (content.hasManifest()) {
+            FileManifest manifest = content.getManifest();
+            fileSize = manifest.getFileSize();
+            chunkSize = manifest.getChunkSize();
+            total = manifest.getTotal();
+            if (manifest.getChunkCrc32CCount() != total) {
+                throw new IOException("Manifesto com " + manifest.getChunkCrc32CCount() + " CRCs para " + total + " chunks");
+            }
+            safeFileName(manifest.getName());
+        } else {
+            fileSize = content.getFileSize();
+            chunkSize = FileTransferManager.CHUNK_SIZE;
+            total = content.getTotal();
+        }
+
+        if (chunkSize <= 0 || fileSize < 0 || total != expectedTotal(fileSize, chunkSize)) {
+            throw new IOException("Transferência " + transferId + " com tamanho inconsistente: file_size=" + fileSize
+                    + ", chunk_size=" + chunkSize + ", total=" + total);
+        }
+
+        // Recusado já no primeiro payload, e não só quando o arquivo completa
+        safeFileName(content.getName());
+
+        if (!content.hasManifest()) {
+            int sequence = content.getSequence();
+            if (sequence < 0 || sequence >= total) {
+                throw new IOException("Chunk " + sequence + " fora de [0, " + total + ") em " + transferId);
+            }
+        }
+    }
+
+    /**
+     * Confere o payload contra a transferência já aberta: mesmo total e
+     * tamanho e, nos chunks, o offset e o tamanho esperados para a sequence.
+     */
+    private static void checkMatches(Transfer transfer, Content content) throws IOException {
+        long fileSize = content.hasManifest() ? content.getManifest().getFileSize() : content.getFileSize();
+        int total = content.hasManifest() ? content.getManifest().getTotal() : content.getTotal();
+        if (total != transfer.total || fileSize != transfer.fileSize()) {
+            throw new IOException("Payload não confere com a transferência (total " + total + "/" + transfer.total
+                    + ", file_size " + fileSize + "/" + transfer.fileSize() + ")");
+        }
+        if (content.hasManifest()) {
+            return;
+        }
+
+        int sequence = content.getSequence();
+        long expectedOffset = (long) sequence * transfer.chunkSize();
+        long expectedLength = Math.min(transfer.chunkSize(), fileSize - expectedOffset);
+        if (content.getOffset() != expectedOffset || content.getBody().size() != expectedLength) {
+            throw new IOException("Chunk " + sequence + " com offset " + content.getOffset() + " e " + content.getBody().size()
+                    + " bytes; esperado offset " + expectedOffset + " e " + expectedLength + " bytes");
+        }
+    }
+
+    private static int expectedTotal(long fileSize, int chunkSize) {
+        long total = Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+        return total > Integer.MAX_VALUE ? -1 : (int) total;
+    }
+
+    // Só a forma canônica: o id vira parte do nome dos arquivos ".part"/".state"
+    private static boolean isUuid(String value) {
+        try {
+            return UUID.fromString(value).toString().equals(value);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Só o último segmento do nome enviado, para o arquivo não sair do
+     * diretório de downloads.
+     */
+    private static String safeFileName(String name) throws IOException {
+        String fileName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+            throw new IOException("Nome de arquivo inválido: " + name);
+        }
+        return fileName;
+    }
+
+    /**
+     * Pede aos remetentes os chunks que faltam de todas as transferências
+     * incompletas. Chamado na inicialização e depois de uma reconexão.
+     */
+    public void requestPendingResumes() {
+        for (Map.Entry<String, Transfer> entry : transfers.entrySet()) {
+            Transfer transfer = entry.getValue();
+            synchronized (transfer) {
+                int lastReceived = transfer.received.length() - 1;
+                ResumeRequest.Builder request = ResumeRequest.newBuilder()
+                        .setTransferId(entry.getKey())
+                        .setFromSequence(lastReceived + 1);
+                for (int i = transfer.received.nextClearBit(0); i < lastReceived; i = transfer.received.nextClearBit(i + 1)) {
+                    request.addMissing(i);
+                }
+                requestResume(transfer, request.build());
+            }
+        }
+    }
+
+    private void requestResume(Transfer transfer, ResumeRequest request) {
+        if (controlListener != null) {
+            controlListener.sendResumeRequest(transfer.header.getEmmitter(), request);
+        }
+    }
+
+    private boolean checksumMatches(Transfer transfer, Content content) {
+        int crc = crc32c(content.getBody());
+        if (crc != content.getCrc32C()) {
+            return false;
+        }
+        if (transfer.hasManifest()) {
+            FileManifest manifest = transfer.header.getContent().getManifest();
+            return content.getSequence() < manifest.getChunkCrc32CCount()
+                    && manifest.getChunkCrc32C(content.getSequence()) == crc;
+        }
+        return true;
+    }
+
+    public static int crc32c(ByteString body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body.asReadOnlyByteBuffer());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Faz o parse de uma entrega de arquivo sem copiar o conteúdo: com aliasing
+     * habilitado, o campo body do Content vira uma view sobre o próprio array
+     * da entrega do RabbitMQ, em vez de um novo byte[].
+     */
+    public static PayloadRequest parse(byte[] deliveryBody) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(deliveryBody);
+        input.enableAliasing(true);
+        return PayloadRequest.parseFrom(input);
+    }
+
+    /**
+     * Grava o conteúdo a partir de uma view ByteBuffer sobre o ByteString,
+     * sem materializar um byte[] intermediário.
+     */
+    private static void write(FileChannel out, ByteString body, long position) throws IOException {
+        ByteBuffer buffer = body.asReadOnlyByteBuffer();
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private Transfer open(String transferId, PayloadRequest payload) {
+        Content content = payload.getContent();
+        int total = content.hasManifest() ? content.getManifest().getTotal() : content.getTotal();
+        Path partPath = downloadDirectory.resolve("." + transferId + ".part");
+        Path statePath = downloadDirectory.resolve("." + transferId + ".state");
+        try {
+            FileChannel out = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileChannel state = FileChannel.open(statePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Transfer transfer = new Transfer(out, state, partPath, statePath, total, new BitSet(total));
+            // Guarda só os metadados, nunca o body do chunk
+            transfer.header = payload.toBuilder().setContent(content.toBuilder().clearBody()).build();
+            writeStateHeader(transfer);
+            return transfer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Layout do arquivo ".state":
+     *   [int total][bitmap de (total + 7) / 8 bytes][int tamanho][PayloadRequest]
+     * O bitmap tem posição fixa e é atualizado byte a byte a cada chunk.
+     */
+    private void writeStateHeader(Transfer transfer) throws IOException {
+        byte[] header = transfer.header.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + transfer.bitmapLength() + 4 + header.length);
+        buffer.putInt(transfer.total);
+        buffer.put(transfer.received.toByteArray());
+        buffer.position(4 + transfer.bitmapLength());
+        buffer.putInt(header.length);
+        buffer.put(header);
+        buffer.flip();
+
+        transfer.state.truncate(0);
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            position += transfer.state.write(buffer, position);
+        }
+        transfer.state.force(false);
+    }
+
+    private void markReceived(Transfer transfer, int sequence) throws IOException {
+        transfer.received.set(sequence);
+
+        int byteIndex = sequence / 8;
+        byte value = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            if (transfer.received.get(byteIndex * 8 + bit)) {
+                value |= (byte) (1 << bit);
+            }
+        }
+        transfer.state.write(ByteBuffer.wrap(new byte[]{value}), 4 + byteIndex);
+        transfer.state.force(false);
+    }
+
+    /**
+     * Recarrega as transferências incompletas a partir dos arquivos ".state".
+     */
+    private void loadPendingTransfers() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(downloadDirectory, ".*.state")) {
+            for (Path statePath : stream) {
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(statePath));
+                    int total = data.getInt();
+                    byte[] bitmap = new byte[(total + 7) / 8];
+                    data.get(bitmap);
+                    byte[] header = new byte[data.getInt()];
+                    data.get(header);
+
+                    String fileName = statePath.getFileName().toString();
+                    String transferId = fileName.substring(1, fileName.length() - ".state".length());
+                    if (Files.exists(tombstonePath(transferId))) {
+                        // Concluída; o restart veio antes de apagar o estado
+                        Files.deleteIfExists(statePath);
+                        continue;
+                    }
+                    Path partPath = downloadDirectory.resolve("." + transferId + ".part");
+
+                    FileChannel out = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileChannel state = FileChannel.open(statePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    Transfer transfer = new Transfer(out, state, partPath, statePath, total, BitSet.valueOf(bitmap));
+                    transfer.header = PayloadRequest.parseFrom(header);
+                    transfers.put(transferId, transfer);
+                } catch (Exception e) {
+                    // Estado corrompido: descarta a transferência
+                    System.err.println("Descartando estado inválido: " + statePath);
+                    Files.deleteIfExists(statePath);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        long cutoff = System.currentTimeMillis() - TOMBSTONE_RETENTION_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(downloadDirectory, ".*.done")) {
+            for (Path tombstone : stream) {
+                if (Files.getLastModifiedTime(tombstone).toMillis() < cutoff) {
+                    Files.deleteIfExists(tombstone);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gera um nome único (arquivo_1.ext, arquivo_2.ext, ...) se o arquivo já existe
+     */
+    private Path getUniqueFileName(Path path) {
+        if (!Files.exists(path)) {
+            return path;
+        }
+
+        String fileName = path.getFileName().toString();
+        String directory = path.getParent().toString();
+
+        int lastDot = fileName.lastIndexOf('.');
+        String nameWithoutExt = lastDot > 0 ? fileName.substring(0, lastDot) : fileName;
+        String extension = lastDot > 0 ? fileName.substring(lastDot) : "";
+
+        int counter = 1;
+        while (true) {
+            String newFileName = nameWithoutExt + "_" + counter + extension;
+            Path newPath = Paths.get(directory + File.separator + newFileName);
+            if (!Files.exists(newPath)) {
+                return newPath;
+            }
+            counter++;
+        }
+    }
+
+    public void close() {
+        diskWriter.shutdown();
+        try {
+            diskWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Transfer transfer : transfers.values()) {
+            try {
+                transfer.out.close();
+                transfer.state.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        transfers.clear();
+    }
+}
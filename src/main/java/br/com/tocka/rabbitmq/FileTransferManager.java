@@ -1,227 +1,487 @@
 package br.com.tocka.rabbitmq;
 
 import com.google.protobuf.ByteString;
-import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 
-import br.com.tocka.payload.PayloadProto;
+import br.com.tocka.model.Timestamps;
 import br.com.tocka.payload.PayloadProto.Content;
+import br.com.tocka.payload.PayloadProto.FileManifest;
 import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import br.com.tocka.payload.PayloadProto.ResumeRequest;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32C;
 
 public class FileTransferManager {
 
     private Connection connection;
-    private Channel channel;
+    private TopologyCache topologyCache;
+    private ChannelPool channelPool;
+    private GroupFileRouting groupFileRouting;
     private String username;
     private FileCallback callback;
     private String downloadDirectory;
-    private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy 'às' HH:mm");
-    private ExecutorService uploadExecutor;
+    private UploadScheduler uploadScheduler;
+    private FileAssembler fileAssembler;
+    private GroupMenager groupMenager;
+    private Map<String, OutgoingTransfer> outgoingTransfers;
 
+    // Tamanho de cada chunk publicado (uma mensagem por chunk)
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    // Quantos uploads recentes manter para atender pedidos de retomada
+    private static final int OUTGOING_MEMORY = 64;
+
+    // Chunks publicados e ainda sem confirmação do broker, por upload
+    private static final int MAX_UNCONFIRMED_CHUNKS = 16;
+    private static final long CONFIRM_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Arquivos recebidos chegam pelo Receiver (InboundDispatcher), que usa o
+     * FileAssembler deste manager.
+     */
     public interface FileCallback {
-        void onFileReceived(String sender, String fileName, LocalDateTime timestamp);
         void onFileSent(String receiver, String fileName);
     }
 
-    public FileTransferManager(Connection connection, String username, FileCallback callback) throws IOException {
-        this.connection = connection;
+    /**
+     * Upload conhecido por este cliente: o suficiente para retransmitir
+     * qualquer chunk a partir do arquivo original.
+     */
+    private static class OutgoingTransfer {
+        final Path source;
+        final String target;
+        final String exchange;
+        final String routingKey;
+        final PayloadRequest header;
+        final FileManifest manifest;
+        // Próximo chunk a publicar no envio original
+        volatile int nextSequence;
+
+        OutgoingTransfer(Path source, String target, String exchange, String routingKey,
+                         PayloadRequest header, FileManifest manifest) {
+            this.source = source;
+            this.target = target;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.header = header;
+            this.manifest = manifest;
+        }
+
+        boolean isComplete() {
+            return nextSequence >= manifest.getTotal();
+        }
+    }
+
+    public FileTransferManager(ConnectionManager connectionManager, String username, FileCallback callback, int uploadParallelism) throws IOException {
+        this.connection = connectionManager.getConnection();
+        this.topologyCache = connectionManager.getTopologyCache();
+        this.channelPool = connectionManager.getChannelPool();
+        this.groupFileRouting = connectionManager.getGroupFileRouting();
         this.username = username;
         this.callback = callback;
-        this.channel = connection.createChannel();
-        this.uploadExecutor = Executors.newSingleThreadExecutor((r) -> {
-            Thread t = new Thread(r, "FileUploadWorker-" + username);
-            t.setDaemon(true);
-            return t;
+        this.uploadScheduler = new UploadScheduler(channelPool, uploadParallelism, "FileUploadWorker-" + username);
+        this.outgoingTransfers = java.util.Collections.synchronizedMap(new LinkedHashMap<String, OutgoingTransfer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, OutgoingTransfer> eldest) {
+                return size() > OUTGOING_MEMORY;
+            }
         });
-        
+
         // Criar diretório de downloads se não existir
         this.downloadDirectory = System.getProperty("user.home") + "/chat/downloads";
-        Files.createDirectories(Paths.get(downloadDirectory));
-        
-        setupFileQueue();
-    }
-
-    private void setupFileQueue() throws IOException {
-        String fileQueueName = username + "_files";
-        java.util.Map<String, Object> args = new java.util.HashMap<>();
-        args.put("x-queue-type", "quorum");
-        args.put("x-quorum-initial-group-size", 3);
-        channel.queueDeclare(fileQueueName, true, false, false, args);
-
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-            try {
-                PayloadProto.PayloadRequest payload = PayloadProto.PayloadRequest.parseFrom(delivery.getBody());
-                String fileName = payload.getContent().getName();
-                String sender = payload.getEmmitter();
-                byte[] fileBytes = payload.getContent().getBody().toByteArray();
-                LocalDateTime timestamp = parseTimestamp(payload.getDate());
-
-                // Salvar arquivo no diretório de downloads
-                String filePath = downloadDirectory + File.separator + fileName;
-                Files.write(Paths.get(filePath), fileBytes);
-
-                if (callback != null) {
-                    callback.onFileReceived(sender, fileName, timestamp);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+        this.fileAssembler = new FileAssembler(downloadDirectory);
+        this.fileAssembler.setControlListener(new FileAssembler.ControlListener() {
+            @Override
+            public void onResumeRequested(String requester, ResumeRequest request) {
+                resendChunks(requester, request);
+            }
+
+            @Override
+            public void sendResumeRequest(String sender, ResumeRequest request) {
+                publishResumeRequest(sender, request);
             }
-        };
+        });
 
-        channel.basicConsume(fileQueueName, true, deliverCallback, consumerTag -> {});
+        setupRecovery();
+
+        // Downloads interrompidos numa execução anterior
+        fileAssembler.requestPendingResumes();
+    }
+
+    /**
+     * Membros dos grupos, para conferir pedidos de retomada de uploads de
+     * grupo. Sem ele, só uploads diretos são retransmitidos.
+     */
+    public void setGroupMenager(GroupMenager groupMenager) {
+        this.groupMenager = groupMenager;
+    }
+
+    /**
+     * Depois de uma reconexão automática: pede os chunks que faltam dos
+     * downloads e continua os uploads que foram interrompidos no meio.
+     */
+    private void setupRecovery() {
+        if (!(connection instanceof Recoverable)) {
+            return;
+        }
+        ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+            @Override
+            public void handleRecovery(Recoverable recoverable) {
+                fileAssembler.requestPendingResumes();
+                resumeInterruptedUploads();
+            }
+
+            @Override
+            public void handleRecoveryStarted(Recoverable recoverable) {
+            }
+        });
     }
 
     public void sendFile(String recipientUsername, String filePath) throws IOException {
-        uploadExecutor.submit(() -> {
-            Channel fileChannel = null;
-            try {
-                // Criar channel específico para esse upload
-                fileChannel = connection.createChannel();
-                
-                Path source = Paths.get(filePath);
-                String fileName = source.getFileName().toString();
-                String mimeType = Files.probeContentType(source);
-                if (mimeType == null) {
-                    mimeType = "application/octet-stream";
-                }
+        Path source = Paths.get(filePath);
 
-                // Ler arquivo
-                byte[] fileBytes = Files.readAllBytes(source);
+        uploadScheduler.submit("@" + recipientUsername, source.getFileName().toString(), Files.size(source), (fileChannel, progress) -> {
+            // Enviar para fila de arquivos do receptor
+            String fileQueueName = recipientUsername + "_files";
+            declareFileQueue(fileChannel, fileQueueName);
 
-                // Criar payload com arquivo
-                PayloadRequest payload = PayloadRequest
-                        .newBuilder()
-                        .setEmmitter(username)
-                        .setReceiver(recipientUsername)
-                        .setDate(LocalDateTime.now().format(formatter))
-                        .setContent(
-                            Content
-                                .newBuilder()
-                                .setName(fileName)
-                                .setType("file")
-                                .setMimeType(mimeType)
-                                .setBody(ByteString.copyFrom(fileBytes))
-                                .build()
-                        )
-                        .build();
+            PayloadRequest header = PayloadRequest
+                    .newBuilder()
+                    .setEmmitter(username)
+                    .setReceiver(recipientUsername)
+                    .setTimestampMicros(Timestamps.nowMicros())
+                    .build();
 
-                // Enviar para fila de arquivos do receptor
-                String fileQueueName = recipientUsername + "_files";
-                java.util.Map<String, Object> args = new java.util.HashMap<>();
-                args.put("x-queue-type", "quorum");
-                args.put("x-quorum-initial-group-size", 3);
-                fileChannel.queueDeclare(fileQueueName, true, false, false, args);
+            upload(fileChannel, new OutgoingTransfer(source, recipientUsername, "", fileQueueName, header, buildManifest(source)), progress);
+        });
+    }
 
-                fileChannel.basicPublish(
-                        "",
-                        fileQueueName,
-                        null,
-                        payload.toByteArray()
-                );
+    public void sendFileToGroup(String groupName, String filePath) throws IOException {
+        Path source = Paths.get(filePath);
 
-                if (callback != null) {
-                    callback.onFileSent(recipientUsername, fileName);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (fileChannel != null && fileChannel.isOpen()) {
-                    try {
-                        fileChannel.close();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        uploadScheduler.submit("#" + groupName, source.getFileName().toString(), Files.size(source), (fileChannel, progress) -> {
+            // Enviar para o group
+            String fileExchangeName = groupFileRouting.exchangeFor(groupName);
+            topologyCache.declareExchange(fileChannel.getChannel(), fileExchangeName, groupFileRouting.exchangeType());
+
+            PayloadRequest header = PayloadRequest
+                    .newBuilder()
+                    .setEmmitter(username)
+                    .setGroup(groupName)
+                    .setIsGroup(true)
+                    .setTimestampMicros(Timestamps.nowMicros())
+                    .build();
+
+            upload(fileChannel, new OutgoingTransfer(source, groupName, fileExchangeName, groupFileRouting.routingKeyFor(groupName), header, buildManifest(source)), progress);
+        });
+    }
+
+    /**
+     * Publica o manifesto e depois os chunks a partir de nextSequence. Se a
+     * conexão cair no meio, o upload fica registrado e continua de onde parou
+     * quando a conexão for recuperada. O arquivo só conta como enviado depois
+     * que o broker confirmou todos os chunks.
+     */
+    private void upload(ChannelPool.PooledChannel fileChannel, OutgoingTransfer transfer, UploadScheduler.Upload progress) throws IOException {
+        outgoingTransfers.put(transfer.manifest.getTransferId(), transfer);
+
+        if (transfer.nextSequence == 0) {
+            awaitConfirm(publishManifest(fileChannel, transfer, transfer.exchange, transfer.routingKey));
+        }
+        publishChunks(fileChannel, transfer, transfer.exchange, transfer.routingKey, transfer.nextSequence, null, progress);
+
+        if (callback != null) {
+            callback.onFileSent(transfer.target, transfer.manifest.getName());
+        }
+    }
+
+    private void resumeInterruptedUploads() {
+        List<OutgoingTransfer> interrupted = new ArrayList<>();
+        synchronized (outgoingTransfers) {
+            for (OutgoingTransfer transfer : outgoingTransfers.values()) {
+                if (!transfer.isComplete()) {
+                    interrupted.add(transfer);
                 }
             }
+        }
+
+        for (OutgoingTransfer transfer : interrupted) {
+            long remaining = transfer.manifest.getFileSize() - (long) transfer.nextSequence * CHUNK_SIZE;
+            uploadScheduler.submit(transfer.header.getIsGroup() ? "#" + transfer.target : "@" + transfer.target,
+                    transfer.manifest.getName(), Math.max(remaining, 0),
+                    (fileChannel, progress) -> upload(fileChannel, transfer, progress));
+        }
+    }
+
+    /**
+     * Atende um pedido de retomada: retransmite só os chunks que faltam,
+     * direto para a fila de arquivos de quem pediu (mesmo em uploads de grupo).
+     * O emmitter do pedido vem do remetente, então só é atendido quem recebeu
+     * o upload: o destinatário, ou um membro atual do grupo.
+     */
+    private void resendChunks(String requester, ResumeRequest request) {
+        OutgoingTransfer transfer = outgoingTransfers.get(request.getTransferId());
+        if (transfer == null) {
+            System.err.println("Pedido de retomada para transferência desconhecida: " + request.getTransferId());
+            return;
+        }
+
+        mayResume(requester, transfer).whenComplete((allowed, error) -> {
+            if (error != null) {
+                System.err.println("Não foi possível conferir os membros de #" + transfer.target + ": " + error.getMessage());
+            } else if (!allowed) {
+                System.err.println("Pedido de retomada de " + requester + " recusado: não é destinatário de " + transfer.manifest.getName());
+            } else {
+                submitResend(requester, transfer, request);
+            }
         });
     }
 
-    public void sendFileToGroup(String groupName, String filePath) throws IOException {
-        uploadExecutor.submit(() -> {
-            Channel fileChannel = null;
-            try {
-                // Criar channel específico para esse upload
-                fileChannel = connection.createChannel();
-                
-                Path source = Paths.get(filePath);
-                String fileName = source.getFileName().toString();
-                String mimeType = Files.probeContentType(source);
-                if (mimeType == null) {
-                    mimeType = "application/octet-stream";
+    private CompletableFuture<Boolean> mayResume(String requester, OutgoingTransfer transfer) {
+        if (!transfer.header.getIsGroup()) {
+            return CompletableFuture.completedFuture(transfer.target.equals(requester));
+        }
+        if (groupMenager == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return groupMenager.listUsersInGroupAsync(transfer.target).thenApply(users -> users.contains(requester));
+    }
+
+    private void submitResend(String requester, OutgoingTransfer transfer, ResumeRequest request) {
+        BitSet missing = new BitSet(transfer.manifest.getTotal());
+        for (int sequence : request.getMissingList()) {
+            missing.set(sequence);
+        }
+        int chunks = missing.cardinality() + Math.max(transfer.manifest.getTotal() - request.getFromSequence(), 0);
+
+        uploadScheduler.submit("@" + requester, transfer.manifest.getName(), (long) chunks * CHUNK_SIZE, (fileChannel, progress) -> {
+            String fileQueueName = requester + "_files";
+            declareFileQueue(fileChannel, fileQueueName);
+
+            awaitConfirm(publishManifest(fileChannel, transfer, "", fileQueueName));
+            publishChunks(fileChannel, transfer, "", fileQueueName, request.getFromSequence(), missing, progress);
+        });
+    }
+
+    private void publishResumeRequest(String sender, ResumeRequest request) {
+        PayloadRequest payload = PayloadRequest
+                .newBuilder()
+                .setEmmitter(username)
+                .setReceiver(sender)
+                .setTimestampMicros(Timestamps.nowMicros())
+                .setContent(
+                    Content
+                        .newBuilder()
+                        .setType("file_resume")
+                        .setResume(request)
+                        .build()
+                )
+                .build();
+
+        // Chamado pela thread do disk writer; publica por um channel do pool
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            pooled.publish("", sender + "_files", null, payload.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Primeira passada pelo arquivo: calcula o CRC32C de cada chunk para o
+     * manifesto. Usa o mesmo buffer de tamanho fixo do envio.
+     */
+    private FileManifest buildManifest(Path source) throws IOException {
+        String mimeType = Files.probeContentType(source);
+        if (mimeType == null) {
+            mimeType = "application/octet-stream";
+        }
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long fileSize = in.size();
+            int total = (int) Math.max(1, (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+            FileManifest.Builder manifest = FileManifest
+                    .newBuilder()
+                    .setTransferId(UUID.randomUUID().toString())
+                    .setName(source.getFileName().toString())
+                    .setMimeType(mimeType)
+                    .setFileSize(fileSize)
+                    .setChunkSize(CHUNK_SIZE)
+                    .setTotal(total);
+
+            ByteBuffer buffer = allocateChunkBuffer(fileSize);
+            CRC32C crc = new CRC32C();
+            for (int sequence = 0; sequence < total; sequence++) {
+                readChunk(in, buffer, (long) sequence * CHUNK_SIZE);
+                crc.reset();
+                crc.update(buffer);
+                manifest.addChunkCrc32C((int) crc.getValue());
+            }
+            return manifest.build();
+        }
+    }
+
+    private CompletableFuture<Void> publishManifest(ChannelPool.PooledChannel fileChannel, OutgoingTransfer transfer, String exchange, String routingKey) throws IOException {
+        Content content = Content
+                .newBuilder()
+                .setName(transfer.manifest.getName())
+                .setType("file_manifest")
+                .setMimeType(transfer.manifest.getMimeType())
+                .setManifest(transfer.manifest)
+                .build();
+
+        return fileChannel.getPublisher().publish(
+                exchange,
+                routingKey,
+                null,
+                transfer.header.toBuilder().setContent(content).build().toByteArray()
+        );
+    }
+
+    /**
+     * Lê o arquivo em chunks de tamanho fixo via FileChannel e publica cada
+     * chunk como uma mensagem própria. Só um buffer de CHUNK_SIZE fica em
+     * memória por transferência, independente do tamanho do arquivo.
+     *
+     * Publica os chunks a partir de fromSequence e, se informado, também os
+     * marcados em extra (lacunas pedidas numa retomada).
+     *
+     * Cada chunk sai pelo ConfirmPublisher do channel, com no máximo
+     * MAX_UNCONFIRMED_CHUNKS esperando confirmação; nextSequence e o
+     * progresso só andam quando o broker confirma o chunk, e o método só
+     * retorna com todos confirmados. Um chunk recusado ou sem rota falha o
+     * upload, que depois continua do último chunk confirmado.
+     */
+    private void publishChunks(ChannelPool.PooledChannel fileChannel, OutgoingTransfer transfer, String exchange, String routingKey,
+                               int fromSequence, BitSet extra, UploadScheduler.Upload progress) throws IOException {
+        FileManifest manifest = transfer.manifest;
+        boolean originalUpload = extra == null;
+        PayloadRequest.Builder header = transfer.header.toBuilder();
+        Deque<CompletableFuture<Void>> unconfirmed = new ArrayDeque<>();
+        Deque<Integer> unconfirmedSequences = new ArrayDeque<>();
+
+        try (FileChannel in = FileChannel.open(transfer.source, StandardOpenOption.READ)) {
+            ByteBuffer buffer = allocateChunkBuffer(manifest.getFileSize());
+
+            for (int sequence = 0; sequence < manifest.getTotal(); sequence++) {
+                if (sequence < fromSequence && (extra == null || !extra.get(sequence))) {
+                    continue;
                 }
 
-                // Ler arquivo
-                byte[] fileBytes = Files.readAllBytes(source);
+                long offset = (long) sequence * CHUNK_SIZE;
+                readChunk(in, buffer, offset);
 
-                // Criar payload com arquivo
-                PayloadRequest payload = PayloadRequest
+                Content content = Content
                         .newBuilder()
-                        .setEmmitter(username)
-                        .setGroup(groupName)
-                        .setIsGroup(true)
-                        .setDate(LocalDateTime.now().format(formatter))
-                        .setContent(
-                            Content
-                                .newBuilder()
-                                .setName(fileName)
-                                .setType("file")
-                                .setMimeType(mimeType)
-                                .setBody(ByteString.copyFrom(fileBytes))
-                                .build()
-                        )
+                        .setName(manifest.getName())
+                        .setType("file")
+                        .setMimeType(manifest.getMimeType())
+                        .setTransferId(manifest.getTransferId())
+                        .setSequence(sequence)
+                        .setTotal(manifest.getTotal())
+                        .setOffset(offset)
+                        .setFileSize(manifest.getFileSize())
+                        .setCrc32C(manifest.getChunkCrc32C(sequence))
+                        .setBody(ByteString.copyFrom(buffer))
                         .build();
 
-                // Enviar para o group
-                String fileExchangeName = groupName + "_files";
-                fileChannel.exchangeDeclare(fileExchangeName, "fanout", true);
-
-                fileChannel.basicPublish(
-                        fileExchangeName,
-                        "",
+                unconfirmed.addLast(fileChannel.getPublisher().publish(
+                        exchange,
+                        routingKey,
                         null,
-                        payload.toByteArray()
-                );
+                        header.setContent(content).build().toByteArray()
+                ));
+                unconfirmedSequences.addLast(sequence);
 
-                if (callback != null) {
-                    callback.onFileSent(groupName, fileName);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (fileChannel != null && fileChannel.isOpen()) {
-                    try {
-                        fileChannel.close();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                if (unconfirmed.size() >= MAX_UNCONFIRMED_CHUNKS) {
+                    confirmOldest(unconfirmed, unconfirmedSequences, transfer, originalUpload, progress);
                 }
             }
-        });
+        }
+
+        while (!unconfirmed.isEmpty()) {
+            confirmOldest(unconfirmed, unconfirmedSequences, transfer, originalUpload, progress);
+        }
+    }
+
+    private void confirmOldest(Deque<CompletableFuture<Void>> unconfirmed, Deque<Integer> unconfirmedSequences,
+                               OutgoingTransfer transfer, boolean originalUpload, UploadScheduler.Upload progress) throws IOException {
+        awaitConfirm(unconfirmed.removeFirst());
+        int sequence = unconfirmedSequences.removeFirst();
+
+        if (originalUpload) {
+            transfer.nextSequence = sequence + 1;
+        }
+        if (progress != null) {
+            long offset = (long) sequence * CHUNK_SIZE;
+            progress.addBytesSent(Math.min(CHUNK_SIZE, transfer.manifest.getFileSize() - offset));
+        }
     }
 
-    private LocalDateTime parseTimestamp(String dateString) {
+    private static void awaitConfirm(CompletableFuture<Void> confirm) throws IOException {
         try {
-            return LocalDateTime.parse(dateString, formatter);
-        } catch (Exception e) {
-            return LocalDateTime.now();
+            confirm.get(CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Broker não confirmou o chunk em " + CONFIRM_TIMEOUT_SECONDS + " s", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrompido esperando confirmação");
         }
     }
 
-    public void close() throws IOException, TimeoutException {
-        uploadExecutor.shutdown();
-        if (channel != null && channel.isOpen()) {
-            channel.close();
+    private static ByteBuffer allocateChunkBuffer(long fileSize) {
+        return ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, Math.max(fileSize, 1)));
+    }
+
+    // Lê um chunk na posição indicada; o buffer volta pronto para leitura
+    private static void readChunk(FileChannel in, ByteBuffer buffer, long offset) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && in.read(buffer, offset + buffer.position()) > 0) {
+            // lê até encher o buffer ou chegar ao fim do arquivo
         }
+        buffer.flip();
+    }
+
+    private void declareFileQueue(ChannelPool.PooledChannel fileChannel, String fileQueueName) throws IOException {
+        topologyCache.declareQueue(fileChannel.getChannel(), fileQueueName);
+    }
+
+    /**
+     * Situação dos uploads (na fila, em andamento e concluídos) para o !uploads
+     */
+    public List<String> getUploadStatus() {
+        return uploadScheduler.describe();
+    }
+
+    public FileAssembler getFileAssembler() {
+        return fileAssembler;
+    }
+
+    public void close() throws IOException, TimeoutException {
+        uploadScheduler.close();
+        fileAssembler.close();
     }
 }
@@ -0,0 +1,72 @@
+package br.com.tocka.rabbitmq;
+
+import java.util.Locale;
+
+/**
+ * Como os arquivos de grupo chegam aos membros.
+ *
+ * FANOUT: um exchange fanout "<grupo>_files" por grupo e, para cada membro,
+ * uma fila "<usuário>_<grupo>_files" com consumer próprio.
+ *
+ * TOPIC: um único exchange topic (TOPIC_EXCHANGE); o upload é publicado com
+ * a routing key "group.<grupo>" e cada membro liga a própria fila de
+ * arquivos ("<usuário>_files") com essa chave. Entrar ou sair de um grupo é
+ * só um bind/unbind, feito por quem adiciona ou remove o membro: nenhuma
+ * fila ou consumer a mais por grupo.
+ *
+ * Todos os clientes de um grupo precisam usar o mesmo modo.
+ */
+public enum GroupFileRouting {
+    FANOUT,
+    TOPIC;
+
+    public static final String TOPIC_EXCHANGE = "group_files";
+
+    public String exchangeFor(String groupName) {
+        return this == TOPIC ? TOPIC_EXCHANGE : groupName + "_files";
+    }
+
+    public String exchangeType() {
+        return this == TOPIC ? "topic" : "fanout";
+    }
+
+    public String routingKeyFor(String groupName) {
+        return this == TOPIC ? "group." + escapeWord(groupName) : "";
+    }
+
+    /*
+     * O nome do grupo vira uma única palavra da routing key: ".", "*" e "#"
+     * (separador e curingas do topic) e o próprio "%" saem como %XX, então a
+     * chave de um grupo nunca casa com os arquivos de outro.
+     */
+    private static String escapeWord(String groupName) {
+        StringBuilder word = new StringBuilder(groupName.length());
+        for (int i = 0; i < groupName.length(); i++) {
+            char c = groupName.charAt(i);
+            switch (c) {
+                case '%':
+                    word.append("%25");
+                    break;
+                case '.':
+                    word.append("%2E");
+                    break;
+                case '*':
+                    word.append("%2A");
+                    break;
+                case '#':
+                    word.append("%23");
+                    break;
+                default:
+                    word.append(c);
+            }
+        }
+        return word.toString();
+    }
+
+    /**
+     * "fanout" ou "topic" (sem diferenciar maiúsculas).
+     */
+    public static GroupFileRouting parse(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -4,52 +4,245 @@ import br.com.tocka.model.ChatMessage;
 import br.com.tocka.rabbitmq.Receiver.MessageCallback;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.rabbitmq.client.*;
 
 public class GroupMenager {
 
-    private Channel channel;
+    // Por quanto tempo uma lista de membros vale, e quando começa a ser atualizada em segundo plano
+    public static final long MEMBERSHIP_TTL_MILLIS = 60_000;
+    public static final long MEMBERSHIP_REFRESH_AFTER_MILLIS = 30_000;
+    public static final int MEMBERSHIP_MAX_ENTRIES = 1024;
+
+    private ChannelPool channelPool;
+    private TopologyCache topologyCache;
     private RabbitMQAPIClient apiClient;
+    private MembershipCache usersByGroup;
+    private MembershipCache groupsByUser;
+    private MembershipRegistry registry;
+    // Só lê do registro depois que ele recebeu da API os grupos que a stream não tem
+    private volatile boolean registrySeeded;
+    private final AtomicBoolean seeding = new AtomicBoolean();
+    private GroupFileRouting groupFileRouting;
 
-    GroupMenager (Channel channel) {
-        this.channel = channel;
+    GroupMenager (ChannelPool channelPool, TopologyCache topologyCache, GroupFileRouting groupFileRouting) {
+        this.channelPool = channelPool;
+        this.topologyCache = topologyCache;
+        this.groupFileRouting = groupFileRouting;
         this.apiClient = null;
     }
 
     public void setAPIClient(RabbitMQAPIClient apiClient) {
         this.apiClient = apiClient;
+        this.usersByGroup = new MembershipCache(apiClient::listUsersInGroupAsync,
+                MEMBERSHIP_TTL_MILLIS, MEMBERSHIP_REFRESH_AFTER_MILLIS, MEMBERSHIP_MAX_ENTRIES);
+        this.groupsByUser = new MembershipCache(apiClient::listGroupsForUserAsync,
+                MEMBERSHIP_TTL_MILLIS, MEMBERSHIP_REFRESH_AFTER_MILLIS, MEMBERSHIP_MAX_ENTRIES);
+    }
+
+    /**
+     * Registro local de membros: com ele em dia (e completado com os grupos
+     * da API), as consultas não usam a API de gerenciamento, e as mudanças
+     * feitas aqui são publicadas nele.
+     */
+    public void setRegistry(MembershipRegistry registry) {
+        this.registry = registry;
+        this.registrySeeded = false;
+        if (registry != null) {
+            // Visão descartada por um buraco na stream: completa de novo com a API
+            registry.setGapListener(() -> {
+                if (this.registry == registry) {
+                    registrySeeded = false;
+                    seeding.set(false);
+                }
+            });
+            seedRegistry();
+        }
+    }
+
+    /**
+     * Quando o registro fica em dia, lê da API as bindings dos grupos e passa
+     * ao registro os membros dos grupos que a stream não tem por inteiro. Se
+     * a API falhar, as consultas continuam na API e a próxima consulta tenta
+     * de novo.
+     */
+    private void seedRegistry() {
+        MembershipRegistry target = registry;
+        if (apiClient == null || target == null || !seeding.compareAndSet(false, true)) {
+            return;
+        }
+        target.whenReady()
+                .thenCompose(ready -> apiClient.listQueueBindingsAsync())
+                .whenComplete((bindings, error) -> {
+                    if (error == null && target == registry) {
+                        target.seed(groupsOf(bindings));
+                        registrySeeded = true;
+                    } else if (error != null) {
+                        System.err.println("Não foi possível ler os grupos da API: " + error.getMessage());
+                        seeding.set(false);
+                    }
+                });
+    }
+
+    /*
+     * Grupos entre as bindings: exchanges ligados a filas de usuário, sem a
+     * topologia de arquivos e do próprio registro.
+     */
+    private static Map<String, List<String>> groupsOf(Map<String, List<String>> bindings) {
+        Map<String, List<String>> groups = new HashMap<>();
+        for (Map.Entry<String, List<String>> binding : bindings.entrySet()) {
+            String exchange = binding.getKey();
+            if (exchange.endsWith("_files") || exchange.equals(GroupFileRouting.TOPIC_EXCHANGE)
+                    || exchange.equals(MembershipRegistry.CONTROL_EXCHANGE)) {
+                continue;
+            }
+            for (String queue : binding.getValue()) {
+                if (!queue.endsWith("_files")) {
+                    groups.computeIfAbsent(exchange, k -> new ArrayList<>()).add(queue);
+                }
+            }
+        }
+        return groups;
+    }
+
+    private boolean registryUsable() {
+        if (registry == null) {
+            return false;
+        }
+        if (!registrySeeded) {
+            seedRegistry();
+            return false;
+        }
+        return registry.isReady();
     }
 
     public void createGroup (String groupName) throws IOException{
-        this.channel.exchangeDeclare(groupName, "fanout", true);
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            this.topologyCache.declareExchange(pooled.getChannel(), groupName, "fanout");
+        }
+        invalidateGroup(groupName);
+        if (registry != null) {
+            registry.groupCreated(groupName);
+        }
     }
 
     public void addNewUser (String username, String groupName) throws IOException{
-        java.util.Map<String, Object> args = new java.util.HashMap<>();
-        args.put("x-queue-type", "quorum");
-        args.put("x-quorum-initial-group-size", 3);
-        this.channel.queueDeclare(username, true, false, false, args);
-        this.channel.queueBind(username, groupName, "");
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            this.topologyCache.declareQueue(pooled.getChannel(), username);
+            pooled.getChannel().queueBind(username, groupName, "");
+
+            if (groupFileRouting == GroupFileRouting.TOPIC) {
+                // Arquivos do grupo passam a cair na fila de arquivos do novo membro
+                String fileExchange = groupFileRouting.exchangeFor(groupName);
+                this.topologyCache.declareExchange(pooled.getChannel(), fileExchange, groupFileRouting.exchangeType());
+                this.topologyCache.declareQueue(pooled.getChannel(), username + "_files");
+                pooled.getChannel().queueBind(username + "_files", fileExchange, groupFileRouting.routingKeyFor(groupName));
+            }
+        }
+        invalidateMembership(username, groupName);
+        if (registry != null) {
+            registry.userAdded(username, groupName);
+        }
     }
 
     public void removeUserFromGroup (String username, String groupName) throws IOException{
-        this.channel.queueUnbind(username, groupName, "");
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            pooled.getChannel().queueUnbind(username, groupName, "");
+
+            if (groupFileRouting == GroupFileRouting.TOPIC) {
+                pooled.getChannel().queueUnbind(username + "_files", groupFileRouting.exchangeFor(groupName), groupFileRouting.routingKeyFor(groupName));
+            }
+        }
+        invalidateMembership(username, groupName);
+        if (registry != null) {
+            registry.userRemoved(username, groupName);
+        }
     }
 
-    public List<String> listUsersInGroup(String groupName) throws IOException {
+    /**
+     * Usuários do grupo. Vem do registro local quando ele está em dia e já
+     * conhece o grupo, senão do cache; a consulta à API, se precisar, é
+     * assíncrona.
+     */
+    public CompletableFuture<List<String>> listUsersInGroupAsync(String groupName) {
+        if (registryUsable() && registry.knowsGroup(groupName)) {
+            return CompletableFuture.completedFuture(registry.listUsersInGroup(groupName));
+        }
         if (apiClient == null) {
-            throw new IOException("API Client não foi inicializado");
+            return notInitialized();
         }
-        return apiClient.listUsersInGroup(groupName);
+        return usersByGroup.get(groupName);
     }
 
-    public List<String> listGroupsForUser(String username) throws IOException {
+    /**
+     * Grupos do usuário, com as mesmas fontes de listUsersInGroupAsync.
+     */
+    public CompletableFuture<List<String>> listGroupsForUserAsync(String username) {
+        if (registryUsable()) {
+            return CompletableFuture.completedFuture(registry.listGroupsForUser(username));
+        }
         if (apiClient == null) {
-            throw new IOException("API Client não foi inicializado");
+            return notInitialized();
+        }
+        return groupsByUser.get(username);
+    }
+
+    public List<String> listUsersInGroup(String groupName) throws IOException {
+        return await(listUsersInGroupAsync(groupName));
+    }
+
+    public List<String> listGroupsForUser(String username) throws IOException {
+        return await(listGroupsForUserAsync(username));
+    }
+
+    /**
+     * Depois de uma reconexão: o que veio da API antes dela pode estar velho.
+     */
+    void invalidateAllMembership() {
+        if (usersByGroup != null) {
+            usersByGroup.invalidateAll();
+            groupsByUser.invalidateAll();
+        }
+    }
+
+    private void invalidateGroup(String groupName) {
+        if (usersByGroup != null) {
+            usersByGroup.invalidate(groupName);
+        }
+    }
+
+    private void invalidateMembership(String username, String groupName) {
+        invalidateGroup(groupName);
+        if (groupsByUser != null) {
+            groupsByUser.invalidate(username);
+        }
+    }
+
+    private static CompletableFuture<List<String>> notInitialized() {
+        CompletableFuture<List<String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("API Client não foi inicializado"));
+        return failed;
+    }
+
+    private static List<String> await(CompletableFuture<List<String>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido consultando a API do RabbitMQ", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
-        return apiClient.listGroupsForUser(username);
     }
 
 }
@@ -0,0 +1,350 @@
+package br.com.tocka.rabbitmq;
+
+import br.com.tocka.payload.PayloadProto.PayloadBatch;
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Delivery;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Todo o consumo do cliente num channel só, com ack manual.
+ *
+ * As filas (texto, arquivos, grupos, stream de controle) são consumidas no
+ * mesmo channel, cada uma com o próprio prefetch. A thread de dispatch do
+ * RabbitMQ só coloca a entrega numa fila de hand-off; uma thread própria faz
+ * o parse do PayloadRequest e chama o handler registrado para o
+ * Content.type. O handler avisa quando terminou (Completion), na hora ou
+ * depois, de outra thread (ex.: arquivo gravado em disco).
+ *
+ * Só esta classe faz ack. Como os delivery tags são do channel e os
+ * handlers terminam fora de ordem, as entregas são liquidadas sempre em
+ * ordem de tag, até antes da mais antiga ainda em andamento: uma sequência
+ * de entregas concluídas vira um ack (multiple = true) e uma entrega com
+ * erro recebe o próprio nack, depois do ack das anteriores. Assim um ack
+ * múltiplo nunca cobre um tag já liquidado (o broker fecharia o channel com
+ * PRECONDITION_FAILED). Os acks são agrupados a cada ACK_BATCH entregas ou
+ * quando a fila de hand-off esvazia.
+ *
+ * A fila de hand-off é limitada (HANDOFF_CAPACITY): se encher, a thread do
+ * RabbitMQ espera. Fins avisados na própria thread do dispatcher não passam
+ * pela fila, então ela nunca espera por si mesma.
+ *
+ * Handlers rodam na thread do dispatcher e devem ser rápidos: trabalho
+ * pesado vai para outra thread e termina pelo Completion.
+ */
+public class InboundDispatcher {
+
+    // Content.type das mensagens de texto (clientes antigos mandam vazio)
+    public static final String TEXT_TYPE = "";
+
+    private static final int ACK_BATCH = 64;
+
+    // Entregas e fins de processamento aguardando a thread do dispatcher
+    private static final int HANDOFF_CAPACITY = 4096;
+
+    public interface Handler {
+        void handle(Delivery delivery, PayloadRequest payload, Completion completion) throws Exception;
+    }
+
+    /**
+     * Fim do processamento de uma entrega; pode ser chamado de qualquer thread.
+     */
+    public interface Completion {
+        // Processada: ack
+        void done();
+
+        // Com erro: nack sem requeue
+        void fail();
+
+        // Não deu para processar agora: nack com requeue, o broker reentrega
+        void retry();
+    }
+
+    /**
+     * Chamada antes de cada ack, na thread do dispatcher. Serve para quem
+     * processa de forma assíncrona (ex.: a GUI) segurar o ack até terminar.
+     */
+    public interface AckBarrier {
+        void await() throws InterruptedException;
+    }
+
+    private enum Outcome {
+        IN_FLIGHT,
+        ACK,
+        REJECT,
+        REQUEUE
+    }
+
+    // Fim de uma entrega, enviado de volta para a thread do dispatcher
+    private static final class Finished {
+        final long deliveryTag;
+        final Outcome outcome;
+
+        Finished(long deliveryTag, Outcome outcome) {
+            this.deliveryTag = deliveryTag;
+            this.outcome = outcome;
+        }
+    }
+
+    private final Channel channel;
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    // Entregas do broker e fins de processamento, na ordem em que acontecem
+    private final BlockingQueue<Object> events = new LinkedBlockingQueue<>(HANDOFF_CAPACITY);
+    private final Thread worker;
+    private volatile boolean closed;
+    private volatile AckBarrier ackBarrier;
+
+    // Só usados pela thread worker: entregas ainda não liquidadas, por tag
+    private final TreeMap<Long, Outcome> unsettled = new TreeMap<>();
+    private int finishedSinceFlush;
+
+    public InboundDispatcher(Connection connection, String threadName) throws IOException {
+        this.channel = connection.createChannel();
+        this.worker = new Thread(this::workerLoop, threadName);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Handler das mensagens com esse Content.type.
+     */
+    public void register(String contentType, Handler handler) {
+        handlers.put(contentType, handler);
+    }
+
+    /**
+     * Começa a consumir a fila neste channel. O prefetch vale só para este
+     * consumer (basicQos por consumer, antes do basicConsume).
+     */
+    public synchronized String consume(String queue, int prefetch, Map<String, Object> arguments) throws IOException {
+        channel.basicQos(Math.max(1, prefetch));
+        return channel.basicConsume(queue, false, arguments, (consumerTag, delivery) -> enqueue(delivery), consumerTag -> {});
+    }
+
+    public String consume(String queue, int prefetch) throws IOException {
+        return consume(queue, prefetch, null);
+    }
+
+    public void setAckBarrier(AckBarrier ackBarrier) {
+        this.ackBarrier = ackBarrier;
+    }
+
+    private void enqueue(Object event) {
+        try {
+            events.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void workerLoop() {
+        while (!closed) {
+            Object event;
+            try {
+                event = events.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (event instanceof Delivery) {
+                dispatch((Delivery) event);
+            } else {
+                finish((Finished) event);
+            }
+
+            if (finishedSinceFlush >= ACK_BATCH || events.isEmpty()) {
+                flushAcks();
+            }
+        }
+        flushAcks();
+    }
+
+    private void dispatch(Delivery delivery) {
+        long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+        unsettled.put(deliveryTag, Outcome.IN_FLIGHT);
+
+        try {
+            if (MessageBatcher.BATCH_TYPE.equals(delivery.getProperties().getType())) {
+                // Lote de mensagens: cada uma vai ao seu handler, na ordem; a
+                // entrega termina quando todas terminarem
+                PayloadBatch batch = PayloadBatch.parseFrom(delivery.getBody());
+                Completion completion = completion(deliveryTag, batch.getMessagesCount());
+                for (PayloadRequest payload : batch.getMessagesList()) {
+                    handlerFor(payload).handle(delivery, payload, completion);
+                }
+            } else {
+                PayloadRequest payload = FileAssembler.parse(delivery.getBody());
+                handlerFor(payload).handle(delivery, payload, completion(deliveryTag, 1));
+            }
+        } catch (Exception e) {
+            if (closed) {
+                // Interrompido no close: sem ack, a mensagem é reentregue
+                return;
+            }
+            e.printStackTrace();
+            finish(new Finished(deliveryTag, Outcome.REJECT));
+        }
+    }
+
+    private Handler handlerFor(PayloadRequest payload) throws IOException {
+        String type = payload.getContent().getType();
+        Handler handler = handlers.get(type);
+        if (handler == null) {
+            throw new IOException("Sem handler para mensagens do tipo \"" + type + "\"");
+        }
+        return handler;
+    }
+
+    private Completion completion(long deliveryTag, int parts) {
+        AtomicInteger remaining = new AtomicInteger(Math.max(1, parts));
+        return new Completion() {
+            @Override
+            public void done() {
+                if (remaining.decrementAndGet() == 0) {
+                    finished(new Finished(deliveryTag, Outcome.ACK));
+                }
+            }
+
+            @Override
+            public void fail() {
+                if (remaining.getAndSet(-1) > 0) {
+                    finished(new Finished(deliveryTag, Outcome.REJECT));
+                }
+            }
+
+            @Override
+            public void retry() {
+                if (remaining.getAndSet(-1) > 0) {
+                    finished(new Finished(deliveryTag, Outcome.REQUEUE));
+                }
+            }
+        };
+    }
+
+    private void finished(Finished finished) {
+        if (Thread.currentThread() == worker) {
+            // Handler síncrono: nada de passar pela fila, que pode estar cheia
+            finish(finished);
+        } else {
+            enqueue(finished);
+        }
+    }
+
+    private void finish(Finished finished) {
+        if (unsettled.replace(finished.deliveryTag, Outcome.IN_FLIGHT, finished.outcome)) {
+            finishedSinceFlush++;
+            if (finished.outcome != Outcome.ACK) {
+                // Nack sai logo, mas só depois do ack das entregas anteriores
+                finishedSinceFlush = ACK_BATCH;
+            }
+        }
+    }
+
+    /**
+     * Liquida, em ordem de tag, as entregas terminadas antes da mais antiga
+     * em andamento: cada sequência de concluídas vira um ack múltiplo que
+     * termina no tag anterior ao primeiro nack.
+     */
+    private void flushAcks() {
+        finishedSinceFlush = 0;
+        boolean barrierPassed = false;
+        long ackUpTo = -1;
+
+        Iterator<Map.Entry<Long, Outcome>> iterator = unsettled.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Outcome> entry = iterator.next();
+            Outcome outcome = entry.getValue();
+            if (outcome == Outcome.IN_FLIGHT) {
+                break;
+            }
+
+            if (outcome == Outcome.ACK) {
+                if (!barrierPassed) {
+                    if (!awaitBarrier()) {
+                        return;
+                    }
+                    barrierPassed = true;
+                }
+                ackUpTo = entry.getKey();
+                iterator.remove();
+                continue;
+            }
+
+            if (ackUpTo >= 0) {
+                ack(ackUpTo);
+                ackUpTo = -1;
+            }
+            nack(entry.getKey(), outcome == Outcome.REQUEUE);
+            iterator.remove();
+        }
+
+        if (ackUpTo >= 0) {
+            ack(ackUpTo);
+        }
+    }
+
+    private boolean awaitBarrier() {
+        AckBarrier barrier = ackBarrier;
+        if (barrier == null) {
+            return true;
+        }
+        try {
+            barrier.await();
+            return true;
+        } catch (InterruptedException e) {
+            // Fechando: sem ack, o broker reentrega
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Tudo o que não foi liquidado até deliveryTag está concluído
+    private void ack(long deliveryTag) {
+        try {
+            if (channel.isOpen()) {
+                channel.basicAck(deliveryTag, true);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void nack(long deliveryTag, boolean requeue) {
+        try {
+            if (channel.isOpen()) {
+                channel.basicNack(deliveryTag, false, requeue);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Entregas e fins de processamento aguardando a thread do dispatcher.
+     */
+    public int getPendingCount() {
+        return events.size();
+    }
+
+    /**
+     * Para a thread worker e fecha o channel; o que não teve ack volta para
+     * as filas do broker.
+     */
+    public void close() throws IOException, TimeoutException {
+        closed = true;
+        worker.interrupt();
+        if (channel.isOpen()) {
+            channel.close();
+        }
+    }
+}
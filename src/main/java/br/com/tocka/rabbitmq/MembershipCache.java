@@ -0,0 +1,123 @@
+package br.com.tocka.rabbitmq;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Cache de consultas de membros (grupo → usuários ou usuário → grupos) à API
+ * de gerenciamento.
+ *
+ * Cada entrada vale por ttlMillis; passado refreshAfterMillis, a consulta
+ * ainda responde da memória mas dispara uma atualização em segundo plano
+ * (refresh-ahead), então entradas usadas com frequência nunca expiram. O
+ * loader é assíncrono (nunca bloqueia quem chama) e duas buscas da mesma
+ * chave ao mesmo tempo viram uma só. O tamanho é limitado por LRU.
+ */
+final class MembershipCache {
+
+    interface Loader {
+        CompletableFuture<List<String>> load(String key);
+    }
+
+    private static final class Entry {
+        List<String> value;
+        long loadedAt;
+        CompletableFuture<List<String>> loading;
+        // Versão da chave; invalidate muda, e uma busca antiga não grava por cima
+        long version;
+    }
+
+    private final Loader loader;
+    private final long ttlMillis;
+    private final long refreshAfterMillis;
+    private final Map<String, Entry> entries;
+
+    private long versions;
+
+    MembershipCache(Loader loader, long ttlMillis, long refreshAfterMillis, int maxEntries) {
+        this.loader = loader;
+        this.ttlMillis = ttlMillis;
+        this.refreshAfterMillis = Math.min(refreshAfterMillis, ttlMillis);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                // Não descarta quem ainda está carregando: o resultado não teria onde ficar
+                return size() > maxEntries && eldest.getValue().loading == null;
+            }
+        };
+    }
+
+    /**
+     * Membros da chave. Completa na hora se a entrada está na memória e
+     * dentro do TTL; senão, quando a API responder.
+     */
+    synchronized CompletableFuture<List<String>> get(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.value != null && now - entry.loadedAt < ttlMillis) {
+            if (now - entry.loadedAt >= refreshAfterMillis && entry.loading == null) {
+                load(key, entry);
+            }
+            return CompletableFuture.completedFuture(entry.value);
+        }
+
+        if (entry == null) {
+            entry = new Entry();
+            entry.version = ++versions;
+            entries.put(key, entry);
+        }
+        return entry.loading != null ? entry.loading : load(key, entry);
+    }
+
+    private CompletableFuture<List<String>> load(String key, Entry entry) {
+        long version = entry.version;
+        CompletableFuture<List<String>> loading = loader.load(key).thenApply(Collections::unmodifiableList);
+        entry.loading = loading;
+
+        loading.whenComplete((value, error) -> {
+            synchronized (this) {
+                if (entry.loading == loading) {
+                    entry.loading = null;
+                }
+                if (entries.get(key) != entry || entry.version != version) {
+                    // Invalidada durante a busca: o resultado pode ser anterior à mudança
+                    return;
+                }
+                if (error == null) {
+                    entry.value = value;
+                    entry.loadedAt = System.currentTimeMillis();
+                } else if (entry.value == null) {
+                    // Erros não ficam no cache; a próxima consulta tenta de novo
+                    entries.remove(key);
+                }
+            }
+        });
+        return loading;
+    }
+
+    /**
+     * Descarta a chave (ex.: depois de um bind/unbind nosso). Uma busca em
+     * andamento continua para quem já esperava por ela, mas não é guardada.
+     */
+    synchronized void invalidate(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            entry.version = ++versions;
+        }
+    }
+
+    /**
+     * Descarta tudo (ex.: depois de uma reconexão, em que membros podem ter
+     * mudado sem passar por este cliente).
+     */
+    synchronized void invalidateAll() {
+        for (Entry entry : entries.values()) {
+            entry.version = ++versions;
+        }
+        entries.clear();
+    }
+}
@@ -0,0 +1,379 @@
+package br.com.tocka.rabbitmq;
+
+import br.com.tocka.model.Timestamps;
+import br.com.tocka.payload.PayloadProto;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Delivery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Registro de membros dos grupos mantido pelos próprios clientes, sem a API
+ * de gerenciamento.
+ *
+ * createGroup/addNewUser/removeUserFromGroup publicam um evento GroupControl
+ * no exchange CONTROL_EXCHANGE, que alimenta uma stream (CONTROL_STREAM): um
+ * log só de append que qualquer cliente relê a partir de um offset. Cada
+ * cliente aplica os eventos, em ordem, numa visão local (grupo → usuários e
+ * usuário → grupos) e grava de tempos em tempos um snapshot compactado com o
+ * offset do último evento aplicado; ao abrir, carrega o snapshot e relê só o
+ * que veio depois.
+ *
+ * A stream tem retenção (RETENTION_MAX_AGE / RETENTION_MAX_BYTES): segmentos
+ * antigos são apagados pelo broker, então o histórico completo não existe e
+ * quem está em dia depende do próprio snapshot. Um cliente sem snapshot, ou
+ * cujo snapshot é mais antigo que o primeiro offset retido, percebe o buraco
+ * (o primeiro offset lido não é o seguinte ao do snapshot), descarta a visão
+ * local e reconstrói o que a stream ainda tem.
+ *
+ * Os eventos chegam pelo InboundDispatcher do cliente (Content.type
+ * "group_control"), no mesmo channel das outras filas.
+ *
+ * Ao conectar, o cliente publica um marcador "sync" e só se considera em dia
+ * (isReady) quando lê o próprio marcador de volta; antes disso, quem consulta
+ * deve usar outra fonte (ex.: a API de gerenciamento).
+ *
+ * Grupos criados antes do registro, por clientes sem ele ou cujos eventos já
+ * saíram da retenção não aparecem na stream (ou aparecem só em parte): seed
+ * completa a visão com esses grupos (vindos da API), e knowsGroup diz se um
+ * grupo já foi visto. Só os grupos cujo "create" foi aplicado têm o histórico
+ * inteiro na visão; os outros recebem os membros da API. Depois de um buraco
+ * a visão volta a ser parcial, e o GapListener avisa para completar de novo.
+ */
+public class MembershipRegistry {
+
+    public static final String CONTROL_EXCHANGE = "group_control";
+    public static final String CONTROL_STREAM = "group_control_log";
+    public static final String CONTROL_TYPE = "group_control";
+
+    // Eventos aplicados entre um snapshot e outro
+    public static final int SNAPSHOT_EVERY = 10_000;
+
+    // Retenção da stream; a retenção age por segmento, daí segmentos pequenos
+    public static final String RETENTION_MAX_AGE = "30D";
+    public static final long RETENTION_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int SEGMENT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int SNAPSHOT_MAGIC = 0x4D454D32; // "MEM2"
+    private static final int PREFETCH = 1000;
+
+    private final String username;
+    private final ChannelPool channelPool;
+    private final Path snapshotFile;
+    private final String syncToken;
+
+    private final Map<String, Set<String>> usersByGroup = new HashMap<>();
+    private final Map<String, Set<String>> groupsByUser = new HashMap<>();
+    // Grupos com o "create" aplicado desde o último buraco: a stream tem tudo deles
+    private final Set<String> completeGroups = new HashSet<>();
+    private volatile Runnable gapListener = () -> {};
+    private long appliedOffset = -1;
+    private int sinceSnapshot;
+    private volatile boolean ready;
+    private final CompletableFuture<Void> readyFuture = new CompletableFuture<>();
+
+    /**
+     * Carrega o snapshot (se houver), declara o exchange e a stream e começa
+     * a reler os eventos depois do offset do snapshot. Falha se o broker não
+     * suportar streams (RabbitMQ 3.9+).
+     */
+    public MembershipRegistry(ConnectionManager connectionManager, InboundDispatcher inbound, String username, Path snapshotFile) throws IOException {
+        this.username = username;
+        this.channelPool = connectionManager.getChannelPool();
+        this.snapshotFile = snapshotFile;
+        this.syncToken = UUID.randomUUID().toString();
+
+        loadSnapshot();
+
+        // Channel descartável: se o broker não tiver streams, o erro fecha só ele
+        Channel channel = connectionManager.getConnection().createChannel();
+        try {
+            channel.exchangeDeclare(CONTROL_EXCHANGE, "fanout", true);
+            Map<String, Object> streamArgs = new HashMap<>();
+            streamArgs.put("x-queue-type", "stream");
+            streamArgs.put("x-max-age", RETENTION_MAX_AGE);
+            streamArgs.put("x-max-length-bytes", RETENTION_MAX_BYTES);
+            streamArgs.put("x-stream-max-segment-size-bytes", SEGMENT_MAX_BYTES);
+            channel.queueDeclare(CONTROL_STREAM, true, false, false, streamArgs);
+            channel.queueBind(CONTROL_STREAM, CONTROL_EXCHANGE, "");
+        } finally {
+            closeQuietly(channel);
+        }
+
+        // Streams exigem ack manual e prefetch; o offset diz de onde reler
+        inbound.register(CONTROL_TYPE, this::apply);
+        Map<String, Object> consumeArgs = new HashMap<>();
+        consumeArgs.put("x-stream-offset", appliedOffset < 0 ? (Object) "first" : (Object) (appliedOffset + 1));
+        inbound.consume(CONTROL_STREAM, PREFETCH, consumeArgs);
+
+        publish("sync", "", syncToken);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Completa quando o registro lê o próprio marcador "sync".
+     */
+    public CompletableFuture<Void> whenReady() {
+        return readyFuture;
+    }
+
+    /**
+     * Chamado (na thread do dispatcher) quando a visão é descartada por um
+     * buraco na stream e precisa ser completada de novo com seed.
+     */
+    public void setGapListener(Runnable gapListener) {
+        this.gapListener = gapListener;
+    }
+
+    public synchronized boolean knowsGroup(String groupName) {
+        return usersByGroup.containsKey(groupName);
+    }
+
+    /**
+     * Junta à visão os membros lidos da API. Grupos com o histórico inteiro
+     * na stream ficam como estão: os eventos valem mais que uma leitura da
+     * API feita em outro momento. Os demais (nunca vistos, ou reconstruídos
+     * de uma stream já cortada pela retenção) recebem os membros da API.
+     */
+    public synchronized void seed(Map<String, List<String>> membersByGroup) {
+        for (Map.Entry<String, List<String>> group : membersByGroup.entrySet()) {
+            if (completeGroups.contains(group.getKey())) {
+                continue;
+            }
+            usersByGroup.computeIfAbsent(group.getKey(), k -> new TreeSet<>());
+            for (String user : group.getValue()) {
+                add(user, group.getKey());
+            }
+        }
+        saveSnapshot();
+    }
+
+    public synchronized List<String> listUsersInGroup(String groupName) {
+        return sorted(usersByGroup.get(groupName));
+    }
+
+    public synchronized List<String> listGroupsForUser(String user) {
+        return sorted(groupsByUser.get(user));
+    }
+
+    public synchronized long getAppliedOffset() {
+        return appliedOffset;
+    }
+
+    private static List<String> sorted(Set<String> members) {
+        return members == null ? Collections.emptyList() : new ArrayList<>(members);
+    }
+
+    public CompletableFuture<Void> groupCreated(String groupName) throws IOException {
+        return publish("create", groupName, "");
+    }
+
+    /**
+     * Publica a entrada do usuário e já aplica na visão local (o evento da
+     * stream chega depois e, reaplicado na ordem, dá o mesmo resultado).
+     */
+    public CompletableFuture<Void> userAdded(String user, String groupName) throws IOException {
+        synchronized (this) {
+            add(user, groupName);
+        }
+        return publish("add", groupName, user);
+    }
+
+    public CompletableFuture<Void> userRemoved(String user, String groupName) throws IOException {
+        synchronized (this) {
+            remove(user, groupName);
+        }
+        return publish("remove", groupName, user);
+    }
+
+    private CompletableFuture<Void> publish(String action, String groupName, String user) throws IOException {
+        PayloadProto.PayloadRequest event = PayloadProto.PayloadRequest.newBuilder()
+                .setEmmitter(username)
+                .setGroup(groupName)
+                .setIsGroup(true)
+                .setTimestampMicros(Timestamps.nowMicros())
+                .setContent(PayloadProto.Content.newBuilder()
+                        .setType(CONTROL_TYPE)
+                        .setControl(PayloadProto.GroupControl.newBuilder()
+                                .setAction(action)
+                                .setGroup(groupName)
+                                .setUser(user)))
+                .build();
+
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            return pooled.getPublisher().publish(CONTROL_EXCHANGE, "", event.toByteArray());
+        }
+    }
+
+    // Roda na thread do dispatcher, na ordem da stream
+    private void apply(Delivery delivery, PayloadProto.PayloadRequest payload, InboundDispatcher.Completion completion) {
+        Object header = delivery.getProperties().getHeaders() == null ? null
+                : delivery.getProperties().getHeaders().get("x-stream-offset");
+        long offset = header instanceof Number ? ((Number) header).longValue() : -1;
+        PayloadProto.GroupControl control = payload.getContent().getControl();
+
+        // Evento já visto ou não, a entrega termina aqui
+        completion.done();
+
+        synchronized (this) {
+            // Depois de uma reconexão a stream pode reentregar eventos já aplicados
+            if (offset >= 0 && offset <= appliedOffset) {
+                return;
+            }
+            if (offset > appliedOffset + 1 && appliedOffset >= 0) {
+                // O broker já apagou eventos depois do snapshot: a visão não é confiável
+                System.err.println("Registro de grupos: eventos " + (appliedOffset + 1) + ".." + (offset - 1)
+                        + " fora da retenção; reconstruindo a partir da stream");
+                usersByGroup.clear();
+                groupsByUser.clear();
+                completeGroups.clear();
+                gapListener.run();
+            }
+
+            switch (control.getAction()) {
+                case "create":
+                    usersByGroup.computeIfAbsent(control.getGroup(), k -> new TreeSet<>());
+                    completeGroups.add(control.getGroup());
+                    break;
+                case "add":
+                    add(control.getUser(), control.getGroup());
+                    break;
+                case "remove":
+                    remove(control.getUser(), control.getGroup());
+                    break;
+                default:
+                    break;
+            }
+            if (offset >= 0) {
+                appliedOffset = offset;
+            }
+
+            boolean caughtUp = "sync".equals(control.getAction()) && syncToken.equals(control.getUser());
+            if (caughtUp || ++sinceSnapshot >= SNAPSHOT_EVERY) {
+                saveSnapshot();
+            }
+            if (caughtUp && !ready) {
+                ready = true;
+                readyFuture.complete(null);
+            }
+        }
+    }
+
+    private void add(String user, String groupName) {
+        usersByGroup.computeIfAbsent(groupName, k -> new TreeSet<>()).add(user);
+        groupsByUser.computeIfAbsent(user, k -> new TreeSet<>()).add(groupName);
+    }
+
+    private void remove(String user, String groupName) {
+        Set<String> users = usersByGroup.get(groupName);
+        if (users != null) {
+            users.remove(user);
+        }
+        Set<String> groups = groupsByUser.get(user);
+        if (groups != null && groups.remove(groupName) && groups.isEmpty()) {
+            groupsByUser.remove(user);
+        }
+    }
+
+    /**
+     * Snapshot: [int magic][long offset][int grupos] e, por grupo,
+     * [utf nome][boolean completo][int membros][utf membro]... Só o estado final entra, então
+     * o arquivo tem o tamanho da visão, não do histórico de eventos.
+     */
+    private void saveSnapshot() {
+        sinceSnapshot = 0;
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(snapshotFile.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(appliedOffset);
+                out.writeInt(usersByGroup.size());
+                for (Map.Entry<String, Set<String>> group : usersByGroup.entrySet()) {
+                    out.writeUTF(group.getKey());
+                    out.writeBoolean(completeGroups.contains(group.getKey()));
+                    out.writeInt(group.getValue().size());
+                    for (String user : group.getValue()) {
+                        out.writeUTF(user);
+                    }
+                }
+            }
+            Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Snapshot de grupos inválido: " + snapshotFile);
+            }
+            long offset = in.readLong();
+            int groups = in.readInt();
+            for (int i = 0; i < groups; i++) {
+                String groupName = in.readUTF();
+                usersByGroup.computeIfAbsent(groupName, k -> new TreeSet<>());
+                if (in.readBoolean()) {
+                    completeGroups.add(groupName);
+                }
+                int members = in.readInt();
+                for (int j = 0; j < members; j++) {
+                    add(in.readUTF(), groupName);
+                }
+            }
+            appliedOffset = offset;
+        } catch (NoSuchFileException e) {
+            // Primeira execução: relê a stream desde o começo
+        } catch (IOException e) {
+            // Snapshot corrompido: descarta e relê tudo
+            System.err.println("Ignorando snapshot de grupos: " + e.getMessage());
+            usersByGroup.clear();
+            groupsByUser.clear();
+            completeGroups.clear();
+            appliedOffset = -1;
+        }
+    }
+
+    /**
+     * Grava o snapshot final. O consumo da stream para junto com o
+     * InboundDispatcher (Receiver.close).
+     */
+    public synchronized void close() {
+        if (appliedOffset >= 0) {
+            saveSnapshot();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException | TimeoutException e) {
+            // Fechando de qualquer jeito
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package br.com.tocka.rabbitmq;
+
+import com.google.protobuf.CodedOutputStream;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.MessageProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Junta mensagens de texto para o mesmo destino numa única publicação.
+ *
+ * A primeira mensagem de um lote agenda o flush para daqui a flushMillis; se
+ * o lote chegar a maxMessages antes disso, ele é publicado na hora. Um lote
+ * com uma mensagem só sai como PayloadRequest normal; com mais de uma, sai
+ * como PayloadBatch (propriedade type = "batch"), que o Receiver desmonta.
+ *
+ * O lock só protege os lotes em formação: quem fecha um lote o troca por
+ * nenhum e a publicação (que pode esperar um channel do pool ou a janela de
+ * confirms) roda na thread do agendador, na ordem em que os lotes foram
+ * fechados. Assim submit, chamado da GUI, nunca espera o broker.
+ */
+public class MessageBatcher {
+
+    public static final String BATCH_TYPE = "batch";
+
+    public static final int DEFAULT_MAX_MESSAGES = 64;
+
+    private static final AMQP.BasicProperties BATCH_PROPERTIES =
+            MessageProperties.PERSISTENT_BASIC.builder().type(BATCH_TYPE).build();
+
+    private final ChannelPool channelPool;
+    private final long flushMillis;
+    private final int maxMessages;
+    private final Map<String, Batch> pending = new HashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    private static class Batch {
+        final String exchange;
+        final String routingKey;
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        // Flush por tempo deste lote; cancelado se o lote sair antes, por tamanho
+        ScheduledFuture<?> timer;
+
+        Batch(String exchange, String routingKey) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+        }
+    }
+
+    public MessageBatcher(ChannelPool channelPool, long flushMillis, int maxMessages) {
+        this.channelPool = channelPool;
+        this.flushMillis = flushMillis;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.flusher = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "MessageBatcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Enfileira um PayloadRequest já serializado. O future completa quando o
+     * lote que contém a mensagem for confirmado pelo broker.
+     */
+    public CompletableFuture<Void> submit(String exchange, String routingKey, byte[] payload) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        String key = exchange + "\u0000" + routingKey;
+
+        synchronized (pending) {
+            Batch batch = pending.get(key);
+            if (batch == null) {
+                Batch created = new Batch(exchange, routingKey);
+                pending.put(key, created);
+                created.timer = flusher.schedule(() -> flushExpired(key, created), flushMillis, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.payloads.add(payload);
+            batch.futures.add(future);
+
+            if (batch.payloads.size() >= maxMessages) {
+                pending.remove(key);
+                batch.timer.cancel(false);
+                enqueuePublish(batch);
+            }
+        }
+        return future;
+    }
+
+    // Roda na thread do agendador; o timer é do lote, não do destino
+    private void flushExpired(String key, Batch batch) {
+        synchronized (pending) {
+            if (!pending.remove(key, batch)) {
+                // Lote já publicado por tamanho
+                return;
+            }
+        }
+        publish(batch);
+    }
+
+    // Chamado com o lock: a ordem da fila do agendador é a ordem dos lotes
+    private void enqueuePublish(Batch batch) {
+        try {
+            flusher.execute(() -> publish(batch));
+        } catch (RejectedExecutionException e) {
+            fail(batch.futures, new IOException("MessageBatcher fechado"));
+        }
+    }
+
+    private void publish(Batch batch) {
+        CompletableFuture<Void> confirmation;
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            ConfirmPublisher publisher = pooled.getPublisher();
+            if (batch.payloads.size() == 1) {
+                confirmation = publisher.publish(batch.exchange, batch.routingKey, batch.payloads.get(0));
+            } else {
+                confirmation = publisher.publish(batch.exchange, batch.routingKey, BATCH_PROPERTIES, encode(batch.payloads));
+            }
+        } catch (IOException e) {
+            fail(batch.futures, e);
+            return;
+        }
+
+        List<CompletableFuture<Void>> futures = batch.futures;
+        confirmation.whenComplete((ok, error) -> {
+            if (error != null) {
+                fail(futures, error);
+                return;
+            }
+            for (CompletableFuture<Void> future : futures) {
+                future.complete(null);
+            }
+        });
+    }
+
+    private static void fail(List<CompletableFuture<Void>> futures, Throwable error) {
+        for (CompletableFuture<Void> future : futures) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /*
+     * Monta o PayloadBatch direto a partir dos bytes de cada PayloadRequest:
+     * um campo repeated de mensagem tem o mesmo formato no fio que bytes
+     * (tag 1 + tamanho + conteúdo), então não é preciso fazer parse de nada.
+     */
+    private static byte[] encode(List<byte[]> payloads) throws IOException {
+        int size = 0;
+        for (byte[] payload : payloads) {
+            size += CodedOutputStream.computeByteArraySize(1, payload);
+        }
+        byte[] out = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        for (byte[] payload : payloads) {
+            output.writeByteArray(1, payload);
+        }
+        output.checkNoSpaceLeft();
+        return out;
+    }
+
+    /**
+     * Publica o que estiver pendente e encerra o agendador, esperando as
+     * publicações já enfileiradas.
+     */
+    public void close() {
+        synchronized (pending) {
+            for (Batch batch : pending.values()) {
+                batch.timer.cancel(false);
+                enqueuePublish(batch);
+            }
+            pending.clear();
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
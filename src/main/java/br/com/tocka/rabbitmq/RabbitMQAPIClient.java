@@ -1,110 +1,235 @@
 package br.com.tocka.rabbitmq;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
+/**
+ * Consultas à API de gerenciamento do RabbitMQ.
+ *
+ * As chamadas usam enqueue do OkHttp (nada bloqueia quem chama) e o corpo é
+ * lido em streaming com JsonReader, guardando só origem, destino e tipo de
+ * cada binding: mesmo um grupo com dezenas de milhares de bindings não vira
+ * uma árvore JSON na memória. Nos endpoints paginados a lista vem em páginas
+ * de PAGE_SIZE, uma requisição depois da outra.
+ */
 public class RabbitMQAPIClient {
 
-    private String managementUrl;
+    // Máximo aceito pela API de gerenciamento
+    public static final int PAGE_SIZE = 500;
+
+    private HttpUrl managementUrl;
     private String username;
     private String password;
     private OkHttpClient client;
-    private Gson gson;
+
+    // Endpoints cujo 400 recusou os parâmetros de paginação; neles a lista vem inteira
+    private final Set<String> unpaginatedEndpoints = ConcurrentHashMap.newKeySet();
+
+    // Recebe os campos de cada binding lida
+    private interface BindingSink {
+        void accept(String source, String destination, String destinationType);
+    }
 
     public RabbitMQAPIClient(String host, int managementPort, String username, String password) {
-        this.managementUrl = "http://" + host + ":" + managementPort + "/api";
+        this.managementUrl = new HttpUrl.Builder()
+                .scheme("http")
+                .host(host)
+                .port(managementPort)
+                .addPathSegment("api")
+                .build();
         this.username = username;
         this.password = password;
         this.client = new OkHttpClient();
-        this.gson = new Gson();
     }
 
     /**
      * Lista todos os usuários que estão vinculados a um determinado grupo (exchange)
      */
-    public List<String> listUsersInGroup(String groupName) throws IOException {
-        List<String> users = new ArrayList<>();
-        
-        // A API retorna as bindings de um exchange
-        // Precisamos extrair os nomes das filas (que correspondem aos usuários)
-        String url = managementUrl + "/exchanges/%2F/" + groupName + "/bindings/source";
-        
+    public CompletableFuture<List<String>> listUsersInGroupAsync(String groupName) {
+        // A API retorna as bindings de um exchange; a destination é o nome
+        // da fila, que corresponde ao usuário
+        HttpUrl url = managementUrl.newBuilder()
+                .addPathSegment("exchanges")
+                .addPathSegment("/")
+                .addPathSegment(groupName)
+                .addPathSegment("bindings")
+                .addPathSegment("source")
+                .build();
+        Set<String> users = new TreeSet<>();
+        return fetch("exchanges/bindings/source", url, (source, destination, type) -> addName(users, destination), () -> new ArrayList<>(users));
+    }
+
+    /**
+     * Lista todos os grupos (exchanges) dos quais um usuário faz parte
+     */
+    public CompletableFuture<List<String>> listGroupsForUserAsync(String username) {
+        // Bindings da fila do usuário; source é o nome do exchange (grupo)
+        HttpUrl url = managementUrl.newBuilder()
+                .addPathSegment("queues")
+                .addPathSegment("/")
+                .addPathSegment(username)
+                .addPathSegment("bindings")
+                .build();
+        Set<String> groups = new TreeSet<>();
+        return fetch("queues/bindings", url, (source, destination, type) -> addName(groups, source), () -> new ArrayList<>(groups));
+    }
+
+    /**
+     * Todas as bindings de exchange para fila do vhost: exchange → filas
+     * (sem o exchange padrão e os internos do broker).
+     */
+    public CompletableFuture<Map<String, List<String>>> listQueueBindingsAsync() {
+        HttpUrl url = managementUrl.newBuilder()
+                .addPathSegment("bindings")
+                .addPathSegment("/")
+                .build();
+        Map<String, List<String>> bindings = new HashMap<>();
+        return fetch("bindings", url, (source, destination, type) -> {
+            if ("queue".equals(type) && isUserName(source)) {
+                bindings.computeIfAbsent(source, k -> new ArrayList<>()).add(destination);
+            }
+        }, () -> bindings);
+    }
+
+    // Ignora o exchange padrão ("") e os internos do broker
+    private static boolean isUserName(String name) {
+        return name != null && !name.isEmpty() && !name.startsWith("amq.");
+    }
+
+    private static void addName(Set<String> names, String name) {
+        if (isUserName(name)) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Lê todas as páginas da lista, passando cada binding ao sink; o
+     * resultado é montado por finish no fim. endpoint identifica o tipo de
+     * consulta (sem os nomes), para lembrar quais não aceitam paginação.
+     */
+    private <T> CompletableFuture<T> fetch(String endpoint, HttpUrl url, BindingSink sink, Supplier<T> finish) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        fetchPage(endpoint, url, 1, sink, finish, result);
+        return result;
+    }
+
+    private <T> void fetchPage(String endpoint, HttpUrl url, int page, BindingSink sink, Supplier<T> finish, CompletableFuture<T> result) {
+        boolean paginated = !unpaginatedEndpoints.contains(endpoint);
+        HttpUrl pageUrl = !paginated ? url : url.newBuilder()
+                .addQueryParameter("page", String.valueOf(page))
+                .addQueryParameter("page_size", String.valueOf(PAGE_SIZE))
+                .build();
+
         Request request = new Request.Builder()
-                .url(url)
+                .url(pageUrl)
                 .addHeader("Authorization", Credentials.basic(username, password))
                 .get()
                 .build();
 
-        try (Response response = client.newCall(request).execute()) {
-            if (response.isSuccessful()) {
-                String responseBody = response.body().string();
-                JsonArray bindingsArray = gson.fromJson(responseBody, JsonArray.class);
-                
-                Set<String> uniqueUsers = new HashSet<>();
-                for (JsonElement element : bindingsArray) {
-                    JsonObject binding = element.getAsJsonObject();
-                    if (binding.has("destination")) {
-                        String destination = binding.get("destination").getAsString();
-                        // A destination é o nome da fila (usuário)
-                        uniqueUsers.add(destination);
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response closing = response) {
+                    String error = response.isSuccessful() ? null : response.body().string();
+                    if (response.code() == 400 && paginated && page == 1 && rejectsPagination(error)) {
+                        unpaginatedEndpoints.add(endpoint);
+                        fetchPage(endpoint, url, 1, sink, finish, result);
+                        return;
                     }
+                    if (error != null) {
+                        throw new IOException("Erro na API do RabbitMQ: " + response.code() + " - " + response.message() + " " + error);
+                    }
+
+                    int pageCount = readBindings(response.body().charStream(), sink);
+                    if (page < pageCount) {
+                        fetchPage(endpoint, url, page + 1, sink, finish, result);
+                    } else {
+                        result.complete(finish.get());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
                 }
-                
-                users = new ArrayList<>(uniqueUsers);
-                Collections.sort(users);
-            } else {
-                throw new IOException("Erro na API do RabbitMQ: " + response.code() + " - " + response.message());
             }
+        });
+    }
+
+    // O 400 de parâmetros de paginação cita "page"/"pagination" no motivo
+    private static boolean rejectsPagination(String error) {
+        if (error == null) {
+            return false;
         }
-        
-        return users;
+        String reason = error.toLowerCase(Locale.ROOT);
+        return reason.contains("page") || reason.contains("paginat");
     }
 
     /**
-     * Lista todos os grupos (exchanges) dos quais um usuário faz parte
+     * Lê a resposta em streaming, passando os campos de cada binding ao sink.
+     * Aceita a lista pura ou uma página ({"items": [...], "page_count": n, ...}).
+     * Retorna quantas páginas a lista tem (1 se não é paginada).
      */
-    public List<String> listGroupsForUser(String username) throws IOException {
-        List<String> groups = new ArrayList<>();
-        
-        // Obtém todas as bindings da fila do usuário
-        String url = managementUrl + "/queues/%2F/" + username + "/bindings";
-        
-        Request request = new Request.Builder()
-                .url(url)
-                .addHeader("Authorization", Credentials.basic(this.username, this.password))
-                .get()
-                .build();
+    private static int readBindings(Reader body, BindingSink sink) throws IOException {
+        try (JsonReader reader = new JsonReader(body)) {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readItems(reader, sink);
+                return 1;
+            }
 
-        try (Response response = client.newCall(request).execute()) {
-            if (response.isSuccessful()) {
-                String responseBody = response.body().string();
-                JsonArray bindingsArray = gson.fromJson(responseBody, JsonArray.class);
-                
-                Set<String> uniqueGroups = new HashSet<>();
-                for (JsonElement element : bindingsArray) {
-                    JsonObject binding = element.getAsJsonObject();
-                    if (binding.has("source")) {
-                        String source = binding.get("source").getAsString();
-                        // source é o nome do exchange (grupo)
-                        if (!source.isEmpty() && !source.startsWith("amq.")) {
-                            uniqueGroups.add(source);
-                        }
-                    }
+            int pageCount = 1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("items")) {
+                    readItems(reader, sink);
+                } else if (name.equals("page_count")) {
+                    pageCount = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return pageCount;
+        }
+    }
+
+    private static void readItems(JsonReader reader, BindingSink sink) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String source = null;
+            String destination = null;
+            String destinationType = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() != JsonToken.STRING) {
+                    reader.skipValue();
+                } else if (name.equals("source")) {
+                    source = reader.nextString();
+                } else if (name.equals("destination")) {
+                    destination = reader.nextString();
+                } else if (name.equals("destination_type")) {
+                    destinationType = reader.nextString();
+                } else {
+                    reader.skipValue();
                 }
-                
-                groups = new ArrayList<>(uniqueGroups);
-                Collections.sort(groups);
-            } else {
-                throw new IOException("Erro na API do RabbitMQ: " + response.code() + " - " + response.message());
             }
+            reader.endObject();
+
+            sink.accept(source, destination, destinationType);
         }
-        
-        return groups;
+        reader.endArray();
     }
 }
@@ -1,48 +1,78 @@
 package br.com.tocka.rabbitmq;
 
-import com.google.protobuf.ByteString;
-import com.rabbitmq.client.*;
+import com.rabbitmq.client.Channel;
 
-import br.com.tocka.model.ChatMessage;
+import br.com.tocka.model.Timestamps;
 import br.com.tocka.payload.PayloadProto;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * Entrada do cliente: consome a fila de texto, a de arquivos e as de grupo
+ * (modo fanout) por um único InboundDispatcher, que separa as mensagens
+ * pelo Content.type e faz todos os acks.
+ */
 public class Receiver {
 
-    private Connection connection;
-    private Channel channel;
+    private TopologyCache topologyCache;
+    private ChannelPool channelPool;
+    private InboundDispatcher inbound;
+    private int textPrefetch;
+    private int filePrefetch;
+    private GroupFileRouting groupFileRouting;
+    // Grupos cujos arquivos esta instância já recebe
+    private final Set<String> fileGroups = ConcurrentHashMap.newKeySet();
     private String queueName;
     private MessageCallback callback;
     private FileCallback fileCallback;
 
+    // Mensagens de texto sem ack neste cliente, se não configurado
+    public static final int DEFAULT_TEXT_PREFETCH = 128;
+
     public interface MessageCallback {
-        void onMessageReceived(String sender, String message, LocalDateTime timestamp);
+        // timestampMicros: horário de envio em microssegundos desde a epoch
+        void onMessageReceived(String sender, String message, long timestampMicros);
     }
 
     public interface FileCallback {
-        void onFileReceived(String sender, String fileName, LocalDateTime timestamp);
+        // group: grupo do upload, ou "" se o arquivo foi enviado só para nós
+        void onFileReceived(String sender, String group, String fileName, long timestampMicros);
     }
 
-    public Receiver(Connection connection, String username, MessageCallback callback) throws IOException {
-        this.connection = connection;
+    public Receiver(ConnectionManager connectionManager, String username, MessageCallback callback) throws IOException {
+        this.topologyCache = connectionManager.getTopologyCache();
+        this.channelPool = connectionManager.getChannelPool();
+        this.textPrefetch = connectionManager.getTextPrefetch();
+        this.filePrefetch = connectionManager.getFilePrefetch();
+        this.groupFileRouting = connectionManager.getGroupFileRouting();
         this.queueName = username;
         this.callback = callback;
-        this.channel = connection.createChannel();
+        this.inbound = new InboundDispatcher(connectionManager.getConnection(), "Inbound-" + username);
 
         setupQueue();
     }
 
-    public void setFileCallback(FileCallback fileCallback) {
+    /**
+     * Registra o callback de arquivos e começa a consumir a fila de arquivos.
+     * O FileAssembler deve ser o do FileTransferManager, que atende os
+     * pedidos de retomada dos uploads.
+     */
+    public void setFileCallback(FileCallback fileCallback, FileAssembler fileAssembler) {
         this.fileCallback = fileCallback;
+
+        InboundDispatcher.Handler fileHandler = (delivery, payload, completion) -> fileAssembler.submit(payload, completion, (completed, savedFile) -> {
+            if (this.fileCallback != null) {
+                String group = completed.getIsGroup() ? completed.getGroup() : "";
+                this.fileCallback.onFileReceived(completed.getEmmitter(), group, savedFile.getFileName().toString(), Timestamps.fromPayload(completed));
+            }
+        });
+        inbound.register("file", fileHandler);
+        inbound.register("file_manifest", fileHandler);
+        inbound.register("file_resume", fileHandler);
+
         try {
             setupFileQueue();
         } catch (IOException e) {
@@ -51,161 +81,102 @@ public class Receiver {
     }
 
     public void subscribeToGroupFiles(String groupName) throws IOException {
-        String groupFileExchangeName = groupName + "_files";
+        if (fileGroups.contains(groupName)) {
+            return;
+        }
+
+        String groupFileExchangeName = groupFileRouting.exchangeFor(groupName);
         String groupFileQueueName = queueName + "_" + groupName + "_files";
 
-        // Declarar exchange de arquivos do grupo
-        channel.exchangeDeclare(groupFileExchangeName, "fanout", true);
-
-        // Declarar fila exclusiva para esse usuário nesse grupo
-        java.util.Map<String, Object> args = new java.util.HashMap<>();
-        args.put("x-queue-type", "quorum");
-        args.put("x-quorum-initial-group-size", 3);
-        channel.queueDeclare(groupFileQueueName, true, false, false, args);
-
-        // Ligar fila ao exchange de arquivos do grupo
-        channel.queueBind(groupFileQueueName, groupFileExchangeName, "");
-
-        // Configurar consumer para essa fila de grupo
-        DeliverCallback groupFileDeliverCallback = (consumerTag, delivery) -> {
-            try {
-                PayloadProto.PayloadRequest payload = PayloadProto.PayloadRequest.parseFrom(delivery.getBody());
-                String fileName = payload.getContent().getName();
-                String sender = payload.getEmmitter();
-                byte[] fileBytes = payload.getContent().getBody().toByteArray();
-                LocalDateTime timestamp = parseTimestamp(payload.getDate());
-
-                // Salvar arquivo no diretório de downloads
-                String downloadDirectory = System.getProperty("user.home") + "/chat/downloads";
-                Files.createDirectories(Paths.get(downloadDirectory));
-                String filePath = downloadDirectory + File.separator + fileName;
-                
-                // Gerar nome único se arquivo já existe
-                filePath = getUniqueFileName(filePath);
-                
-                Files.write(Paths.get(filePath), fileBytes);
-
-                if (fileCallback != null) {
-                    fileCallback.onFileReceived(sender, Paths.get(filePath).getFileName().toString(), timestamp);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        };
+        // Declarações num channel do pool: um erro do broker não derruba o channel de consumo
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            Channel channel = pooled.getChannel();
+            topologyCache.declareExchange(channel, groupFileExchangeName, groupFileRouting.exchangeType());
 
-        channel.basicConsume(groupFileQueueName, true, groupFileDeliverCallback, consumerTag -> {});
-    }
-
-    private void setupQueue() throws IOException {
-        java.util.Map<String, Object> args = new java.util.HashMap<>();
-        args.put("x-queue-type", "quorum");
-        args.put("x-quorum-initial-group-size", 3);
-        channel.queueDeclare(queueName, true, false, false, args);
-
-        //System.out.println("Aguardando mensagens na fila: " + queueName);
-
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-            try {
-                PayloadProto.PayloadRequest payload = PayloadProto.PayloadRequest.parseFrom(delivery.getBody()); 
-                String message = new String (payload.getContent().getBody().toByteArray());
-
-                String sender = payload.getEmmitter();
-                LocalDateTime timestamp = parseTimestamp(payload.getDate());
-
-                if (callback != null) {
-                    callback.onMessageReceived(sender, message, timestamp);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (groupFileRouting == GroupFileRouting.TOPIC) {
+                // Só um bind da fila de arquivos que já é consumida
+                channel.queueBind(queueName + "_files", groupFileExchangeName, groupFileRouting.routingKeyFor(groupName));
+                fileGroups.add(groupName);
+                return;
             }
-        };
 
-        channel.basicConsume(queueName, true, deliverCallback, consumerTag -> {});
-    }
+            // Declarar fila exclusiva para esse usuário nesse grupo
+            topologyCache.declareQueue(channel, groupFileQueueName);
 
-    private void setupFileQueue() throws IOException {
-        String fileQueueName = queueName + "_files";
-        java.util.Map<String, Object> args = new java.util.HashMap<>();
-        args.put("x-queue-type", "quorum");
-        args.put("x-quorum-initial-group-size", 3);
-        channel.queueDeclare(fileQueueName, true, false, false, args);
-
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-            try {
-                PayloadProto.PayloadRequest payload = PayloadProto.PayloadRequest.parseFrom(delivery.getBody());
-                String fileName = payload.getContent().getName();
-                String sender = payload.getEmmitter();
-                byte[] fileBytes = payload.getContent().getBody().toByteArray();
-                LocalDateTime timestamp = parseTimestamp(payload.getDate());
-
-                // Salvar arquivo no diretório de downloads
-                String downloadDirectory = System.getProperty("user.home") + "/chat/downloads";
-                Files.createDirectories(Paths.get(downloadDirectory));
-                String filePath = downloadDirectory + File.separator + fileName;
-                
-                // Gerar nome único se arquivo já existe
-                filePath = getUniqueFileName(filePath);
-                
-                Files.write(Paths.get(filePath), fileBytes);
-
-                if (fileCallback != null) {
-                    fileCallback.onFileReceived(sender, Paths.get(filePath).getFileName().toString(), timestamp);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        };
+            // Ligar fila ao exchange de arquivos do grupo
+            channel.queueBind(groupFileQueueName, groupFileExchangeName, "");
+        }
 
-        channel.basicConsume(fileQueueName, true, deliverCallback, consumerTag -> {});
+        // Consumer dessa fila de grupo no mesmo channel de entrada
+        inbound.consume(groupFileQueueName, filePrefetch);
+        fileGroups.add(groupName);
     }
 
-    private String extractSender(String message) {
-        if (message.startsWith("@")) {
-            int endIndex = message.indexOf(" diz:");
-            if (endIndex > 0) {
-                return message.substring(1, endIndex);
+    /**
+     * Para de receber os arquivos do grupo. No modo topic é só o unbind; no
+     * fanout a fila do grupo continua existindo (e consumida) até o próximo
+     * início, como antes.
+     */
+    public void unsubscribeFromGroupFiles(String groupName) throws IOException {
+        if (groupFileRouting == GroupFileRouting.TOPIC) {
+            try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+                pooled.getChannel().queueUnbind(queueName + "_files", groupFileRouting.exchangeFor(groupName), groupFileRouting.routingKeyFor(groupName));
             }
+            fileGroups.remove(groupName);
         }
-        return "";
     }
 
-    private String getUniqueFileName(String filePath) {
-        Path path = Paths.get(filePath);
-        if (!Files.exists(path)) {
-            return filePath;
+    private void setupQueue() throws IOException {
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            topologyCache.declareQueue(pooled.getChannel(), queueName);
         }
 
-        String fileName = path.getFileName().toString();
-        String directory = path.getParent().toString();
-        
-        int lastDot = fileName.lastIndexOf('.');
-        String nameWithoutExt = lastDot > 0 ? fileName.substring(0, lastDot) : fileName;
-        String extension = lastDot > 0 ? fileName.substring(lastDot) : "";
-
-        int counter = 1;
-        while (true) {
-            String newFileName = nameWithoutExt + "_" + counter + extension;
-            String newFilePath = directory + File.separator + newFileName;
-            if (!Files.exists(Paths.get(newFilePath))) {
-                return newFilePath;
-            }
-            counter++;
+        // O texto termina assim que o callback retorna; lotes chegam já separados
+        inbound.register(InboundDispatcher.TEXT_TYPE, (delivery, payload, completion) -> {
+            dispatchMessage(payload);
+            completion.done();
+        });
+        inbound.consume(queueName, textPrefetch);
+    }
+
+    private void dispatchMessage(PayloadProto.PayloadRequest payload) {
+        // ChatMessage envia o texto em UTF-8
+        String message = payload.getContent().getBody().toStringUtf8();
+
+        String sender = payload.getEmmitter();
+        long timestampMicros = Timestamps.fromPayload(payload);
+
+        if (callback != null) {
+            callback.onMessageReceived(sender, message, timestampMicros);
         }
     }
 
-    private LocalDateTime parseTimestamp(String dateString) {
-        try {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy 'às' HH:mm");
-            return LocalDateTime.parse(dateString, formatter);
-        } catch (Exception e) {
-            // Se houver erro ao parsear, retorna a hora atual
-            return LocalDateTime.now();
+    /**
+     * Segura os acks até a barreira liberar (ver InboundDispatcher).
+     */
+    public void setAckBarrier(InboundDispatcher.AckBarrier ackBarrier) {
+        inbound.setAckBarrier(ackBarrier);
+    }
+
+    /**
+     * Dispatcher de entrada, para registrar outros tipos (ex.: o registro de grupos).
+     */
+    public InboundDispatcher getInboundDispatcher() {
+        return inbound;
+    }
+
+    private void setupFileQueue() throws IOException {
+        String fileQueueName = queueName + "_files";
+        try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+            topologyCache.declareQueue(pooled.getChannel(), fileQueueName);
         }
+
+        inbound.consume(fileQueueName, filePrefetch);
     }
 
     public void close() throws IOException, TimeoutException {
-        if (channel != null && channel.isOpen()) {
-            channel.close();
+        if (inbound != null) {
+            inbound.close();
         }
     }
-}
+}
\ No newline at end of file
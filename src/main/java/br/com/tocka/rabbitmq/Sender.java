@@ -1,66 +1,100 @@
 package br.com.tocka.rabbitmq;
 
-import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 
 import br.com.tocka.model.ChatMessage;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
 
 public class Sender {
 
     private Connection connection;
-    private Channel channel;
+    private ChannelPool channelPool;
+    private TopologyCache topologyCache;
+    private MessageBatcher batcher;
     private GroupMenager groupMenager;
     private String host;
     private int managementPort;
     private String username;
     private String password;
 
-    public Sender(Connection connection, String host, int managementPort, String username, String password) throws IOException {
-        this.connection = connection;
+    public Sender(ConnectionManager connectionManager, String host, int managementPort, String username, String password) throws IOException {
+        this.connection = connectionManager.getConnection();
+        this.topologyCache = connectionManager.getTopologyCache();
         this.host = host;
         this.managementPort = managementPort;
         this.username = username;
         this.password = password;
-        this.channel = connection.createChannel();
+        // Channels emprestados do pool: a thread da GUI, o batcher e o
+        // GroupMenager nunca dividem o mesmo channel ao mesmo tempo
+        this.channelPool = connectionManager.getChannelPool();
 
-        this.groupMenager = new GroupMenager(this.channel);
+        this.groupMenager = new GroupMenager(this.channelPool, this.topologyCache, connectionManager.getGroupFileRouting());
         
         // Inicializar o API Client para o GroupManager
         RabbitMQAPIClient apiClient = new RabbitMQAPIClient(host, managementPort, username, password);
         this.groupMenager.setAPIClient(apiClient);
+
+        // Membros podem ter mudado enquanto a conexão estava fora
+        if (connection instanceof Recoverable) {
+            ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recoverable) {
+                    groupMenager.invalidateAllMembership();
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recoverable) {
+                }
+            });
+        }
+    }
+
+    /**
+     * Liga o modo em lote: mensagens para o mesmo destino são agrupadas por
+     * até flushMillis ou maxMessages, o que vier primeiro.
+     */
+    public void enableBatching(long flushMillis, int maxMessages) {
+        this.batcher = new MessageBatcher(channelPool, flushMillis, maxMessages);
     }
 
-    public void sendMessageToGroup(String groupName, ChatMessage message) throws IOException {
+    /**
+     * Publica no exchange do grupo. O future completa quando o broker confirma.
+     */
+    public CompletableFuture<Void> sendMessageToGroup(String groupName, ChatMessage message) throws IOException {
 
-            channel.basicPublish(
-                    groupName,
-                    "",
-                    null,
-                    message.getReadyPayload()
-            );
+            if (batcher != null) {
+                return batcher.submit(groupName, "", message.getReadyPayload());
+            }
+            try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+                return pooled.getPublisher().publish(groupName, "", message.getReadyPayload());
+            }
     }
 
-    public void sendMessage(String recipientQueue, ChatMessage message) throws IOException {
-            java.util.Map<String, Object> args = new java.util.HashMap<>();
-            args.put("x-queue-type", "quorum");
-            args.put("x-quorum-initial-group-size", 3);
-            channel.queueDeclare(recipientQueue, true, false, false, args);
-
-            channel.basicPublish(
-                    "",
-                    recipientQueue,
-                    null,
-                    message.getReadyPayload()
-            );
+    /**
+     * Publica na fila do destinatário. O future completa quando o broker confirma.
+     */
+    public CompletableFuture<Void> sendMessage(String recipientQueue, ChatMessage message) throws IOException {
+            try (ChannelPool.PooledChannel pooled = channelPool.borrow()) {
+                // Só faz o queueDeclare (RPC) na primeira vez para cada fila
+                topologyCache.declareQueue(pooled.getChannel(), recipientQueue);
+
+                if (batcher == null) {
+                    return pooled.getPublisher().publish("", recipientQueue, message.getReadyPayload());
+                }
+            }
+            // O batcher pega o próprio channel na hora do flush
+            return batcher.submit("", recipientQueue, message.getReadyPayload());
     }
 
-    public Channel getChannel() {
-        return channel;
+    public ChannelPool getChannelPool() {
+        return channelPool;
     }
 
     public Connection getConnection() {
@@ -69,8 +103,8 @@ public class Sender {
 
     public void close() throws IOException, TimeoutException {
 
-            if (channel != null && channel.isOpen()) {
-                channel.close();
+            if (batcher != null) {
+                batcher.close();
             }
     }
 
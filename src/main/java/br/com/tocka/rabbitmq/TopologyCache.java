@@ -0,0 +1,84 @@
+package br.com.tocka.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Method;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache das filas e exchanges já declaradas nesta conexão.
+ *
+ * queueDeclare/exchangeDeclare são RPCs síncronos; com o cache, só a primeira
+ * publicação para um destino paga esse round-trip e as seguintes custam só o
+ * frame do publish. O cache é invalidado quando a conexão é recuperada e
+ * quando o broker responde NOT_FOUND (fila/exchange removida por fora).
+ */
+public class TopologyCache {
+
+    // Argumentos das filas quorum, compartilhados (imutável)
+    public static final Map<String, Object> QUORUM_ARGS;
+
+    static {
+        Map<String, Object> args = new HashMap<>();
+        args.put("x-queue-type", "quorum");
+        args.put("x-quorum-initial-group-size", 3);
+        QUORUM_ARGS = Collections.unmodifiableMap(args);
+    }
+
+    private final Set<String> declaredQueues = ConcurrentHashMap.newKeySet();
+    private final Set<String> declaredExchanges = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Declara a fila quorum (durável) se ainda não foi declarada nesta conexão.
+     */
+    public void declareQueue(Channel channel, String queueName) throws IOException {
+        if (declaredQueues.contains(queueName)) {
+            return;
+        }
+        channel.queueDeclare(queueName, true, false, false, QUORUM_ARGS);
+        declaredQueues.add(queueName);
+    }
+
+    /**
+     * Declara o exchange (durável) se ainda não foi declarado nesta conexão.
+     */
+    public void declareExchange(Channel channel, String exchangeName, String type) throws IOException {
+        if (declaredExchanges.contains(exchangeName)) {
+            return;
+        }
+        channel.exchangeDeclare(exchangeName, type, true);
+        declaredExchanges.add(exchangeName);
+    }
+
+    public void invalidateQueue(String queueName) {
+        declaredQueues.remove(queueName);
+    }
+
+    public void invalidateExchange(String exchangeName) {
+        declaredExchanges.remove(exchangeName);
+    }
+
+    public void invalidateAll() {
+        declaredQueues.clear();
+        declaredExchanges.clear();
+    }
+
+    /**
+     * Listener para os channels: se o broker fechou o channel com NOT_FOUND,
+     * algum nome do cache deixou de existir e tudo é declarado de novo.
+     */
+    public void onChannelShutdown(ShutdownSignalException cause) {
+        Method reason = cause.getReason();
+        if (reason instanceof AMQP.Channel.Close
+                && ((AMQP.Channel.Close) reason).getReplyCode() == AMQP.NOT_FOUND) {
+            invalidateAll();
+        }
+    }
+}
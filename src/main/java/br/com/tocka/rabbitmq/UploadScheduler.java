@@ -0,0 +1,284 @@
+package br.com.tocka.rabbitmq;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agendador de uploads com paralelismo configurável.
+ *
+ * - Cada worker publica com um channel emprestado do ChannelPool da
+ *   conexão, em vez de abrir e fechar um channel por arquivo.
+ * - Fila justa por destinatário: os destinatários são atendidos em rodízio e
+ *   cada um tem no máximo um upload grande em andamento, então um arquivo de
+ *   1 GB para @bob não segura os envios para @alice.
+ * - Arquivos pequenos (até SMALL_FILE_THRESHOLD) passam na frente: vão para
+ *   uma fila própria e não contam no limite por destinatário. Dentro de cada
+ *   destinatário, o menor arquivo sai primeiro.
+ */
+public class UploadScheduler {
+
+    public static final int DEFAULT_PARALLELISM = 3;
+
+    // Arquivos até esse tamanho têm prioridade
+    public static final long SMALL_FILE_THRESHOLD = 1024 * 1024;
+
+    // Quantos uploads concluídos manter para o !uploads
+    private static final int HISTORY_SIZE = 20;
+
+    public enum State { QUEUED, IN_FLIGHT, COMPLETED, FAILED }
+
+    public interface Work {
+        void run(ChannelPool.PooledChannel channel, Upload upload) throws IOException;
+    }
+
+    /**
+     * Um upload agendado e suas estatísticas.
+     */
+    public static class Upload {
+        private final long id;
+        private final String target;
+        private final String fileName;
+        private final long size;
+        private final Work work;
+        private final AtomicLong bytesSent = new AtomicLong();
+        private volatile State state = State.QUEUED;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+
+        Upload(long id, String target, String fileName, long size, Work work) {
+            this.id = id;
+            this.target = target;
+            this.fileName = fileName;
+            this.size = size;
+            this.work = work;
+        }
+
+        public void addBytesSent(long bytes) {
+            bytesSent.addAndGet(bytes);
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        boolean isSmall() {
+            return size <= SMALL_FILE_THRESHOLD;
+        }
+
+        /**
+         * Vazão em bytes por segundo desde o início do envio.
+         */
+        public double getThroughput() {
+            if (startedAt == 0) {
+                return 0;
+            }
+            long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+            double seconds = Math.max(end - startedAt, 1) / 1_000_000_000.0;
+            return bytesSent.get() / seconds;
+        }
+
+        public String describe() {
+            String line = String.format("#%d %s -> %s [%s] %s/%s",
+                    id, fileName, target, state,
+                    formatBytes(bytesSent.get()), formatBytes(size));
+            if (state != State.QUEUED) {
+                line += " " + formatBytes((long) getThroughput()) + "/s";
+            }
+            return line;
+        }
+    }
+
+    private final ChannelPool channelPool;
+    private final int parallelism;
+    private final ExecutorService workers;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Estado da fila (protegido por "lock")
+    private final Object lock = new Object();
+    private final Deque<Upload> smallLane = new ArrayDeque<>();
+    private final Map<String, PriorityQueue<Upload>> perTarget = new LinkedHashMap<>();
+    private final Deque<String> rotation = new ArrayDeque<>();
+    private final Set<String> busyTargets = new HashSet<>();
+    private final List<Upload> active = new ArrayList<>();
+    private final Deque<Upload> history = new ArrayDeque<>();
+    private boolean closed;
+
+    public UploadScheduler(ChannelPool channelPool, int parallelism, String threadPrefix) {
+        this.channelPool = channelPool;
+        this.parallelism = Math.max(1, parallelism);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.parallelism, (r) -> {
+            Thread t = new Thread(r, threadPrefix + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < this.parallelism; i++) {
+            workers.submit(this::workerLoop);
+        }
+    }
+
+    public Upload submit(String target, String fileName, long size, Work work) {
+        Upload upload = new Upload(nextId.getAndIncrement(), target, fileName, size, work);
+        synchronized (lock) {
+            active.add(upload);
+            if (upload.isSmall()) {
+                smallLane.add(upload);
+            } else {
+                PriorityQueue<Upload> queue = perTarget.get(target);
+                if (queue == null) {
+                    queue = new PriorityQueue<>(Comparator.comparingLong((Upload u) -> u.size).thenComparingLong(u -> u.id));
+                    perTarget.put(target, queue);
+                    rotation.add(target);
+                }
+                queue.add(upload);
+            }
+            lock.notifyAll();
+        }
+        return upload;
+    }
+
+    private void workerLoop() {
+        while (true) {
+            Upload upload;
+            try {
+                upload = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (upload == null) {
+                return;
+            }
+            run(upload);
+        }
+    }
+
+    private Upload take() throws InterruptedException {
+        synchronized (lock) {
+            while (!closed) {
+                Upload next = smallLane.poll();
+                if (next == null) {
+                    next = nextFromRotation();
+                }
+                if (next != null) {
+                    next.state = State.IN_FLIGHT;
+                    next.startedAt = System.nanoTime();
+                    return next;
+                }
+                lock.wait();
+            }
+            return null;
+        }
+    }
+
+    // Próximo destinatário (em rodízio) que não tem upload grande em andamento
+    private Upload nextFromRotation() {
+        for (int i = 0; i < rotation.size(); i++) {
+            String target = rotation.poll();
+            if (busyTargets.contains(target)) {
+                rotation.add(target);
+                continue;
+            }
+            PriorityQueue<Upload> queue = perTarget.get(target);
+            Upload next = queue.poll();
+            if (queue.isEmpty()) {
+                perTarget.remove(target);
+            } else {
+                rotation.add(target);
+            }
+            busyTargets.add(target);
+            return next;
+        }
+        return null;
+    }
+
+    private void run(Upload upload) {
+        inFlight.incrementAndGet();
+        try (ChannelPool.PooledChannel channel = channelPool.borrow()) {
+            upload.work.run(channel, upload);
+            upload.state = State.COMPLETED;
+        } catch (Exception e) {
+            upload.state = State.FAILED;
+            e.printStackTrace();
+        } finally {
+            upload.finishedAt = System.nanoTime();
+            inFlight.decrementAndGet();
+            synchronized (lock) {
+                if (!upload.isSmall()) {
+                    busyTargets.remove(upload.target);
+                }
+                active.remove(upload);
+                history.addFirst(upload);
+                while (history.size() > HISTORY_SIZE) {
+                    history.removeLast();
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Linhas para o comando !uploads: em andamento, na fila e concluídos.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        synchronized (lock) {
+            int queued = 0;
+            for (Upload upload : active) {
+                if (upload.state == State.QUEUED) {
+                    queued++;
+                }
+            }
+            lines.add(String.format("Uploads: %d em andamento, %d na fila, paralelismo %d",
+                    inFlight.get(), queued, parallelism));
+            for (Upload upload : active) {
+                if (upload.state == State.IN_FLIGHT) {
+                    lines.add(upload.describe());
+                }
+            }
+            for (Upload upload : active) {
+                if (upload.state == State.QUEUED) {
+                    lines.add(upload.describe());
+                }
+            }
+            for (Upload upload : history) {
+                lines.add(upload.describe());
+            }
+        }
+        return lines;
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        workers.shutdown();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,28 @@
+package br.com.tocka.rabbitmq;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Acesso às virtual threads (Java 21+) sem depender delas para compilar:
+ * o projeto é compilado para Java 11, então a API é buscada por reflexão e,
+ * se a JVM não tiver, quem chama segue com threads normais.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() se a JVM suportar, senão null.
+     */
+    static ExecutorService newPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
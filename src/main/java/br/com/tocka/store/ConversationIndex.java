@@ -0,0 +1,220 @@
+package br.com.tocka.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+/**
+ * Índice de uma conversa: entradas de 16 bytes [long timestamp][long offset
+ * no log], na ordem em que as mensagens foram gravadas.
+ *
+ * Os offsets sempre crescem. O timestamp do índice também: se uma mensagem
+ * chega com horário anterior ao da última (relógios diferentes), a entrada
+ * usa o horário da última, então dá para fazer busca binária por tempo. O
+ * horário real fica no registro do log.
+ *
+ * Nada é carregado para o heap: as leituras são posicionais no arquivo.
+ */
+final class ConversationIndex implements Closeable {
+
+    static final int ENTRY_BYTES = 16;
+    static final String SUFFIX = ".idx";
+
+    private final String conversation;
+    private final Path path;
+    private FileChannel channel;
+    private long count;
+    private long lastTimestamp;
+
+    // Reaproveitado nas escritas (o MessageStore já serializa o acesso)
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+
+    private ConversationIndex(String conversation, Path path, FileChannel channel) {
+        this.conversation = conversation;
+        this.path = path;
+        this.channel = channel;
+    }
+
+    // Nome de arquivo seguro para qualquer nome de conversa
+    static Path pathFor(Path directory, String conversation) {
+        String name = Base64.getUrlEncoder().withoutPadding().encodeToString(conversation.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(name + SUFFIX);
+    }
+
+    static String conversationOf(Path path) {
+        String name = path.getFileName().toString();
+        return new String(Base64.getUrlDecoder().decode(name.substring(0, name.length() - SUFFIX.length())), StandardCharsets.UTF_8);
+    }
+
+    static ConversationIndex open(Path directory, String conversation) throws IOException {
+        Path path = pathFor(directory, conversation);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ConversationIndex index = new ConversationIndex(conversation, path, channel);
+        index.load();
+        return index;
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size % ENTRY_BYTES != 0) {
+            // Entrada pela metade de uma escrita interrompida
+            size -= size % ENTRY_BYTES;
+            channel.truncate(size);
+        }
+        count = size / ENTRY_BYTES;
+        lastTimestamp = count > 0 ? timestampAt(count - 1) : Long.MIN_VALUE;
+    }
+
+    String getConversation() {
+        return conversation;
+    }
+
+    long count() {
+        return count;
+    }
+
+    void append(long timestampMicros, long offset) throws IOException {
+        long key = Math.max(timestampMicros, lastTimestamp);
+        entry.clear();
+        entry.putLong(key).putLong(offset).flip();
+        long position = count * ENTRY_BYTES;
+        while (entry.hasRemaining()) {
+            position += channel.write(entry, position);
+        }
+        count++;
+        lastTimestamp = key;
+    }
+
+    long timestampAt(long i) throws IOException {
+        return readEntry(i).getLong(0);
+    }
+
+    long offsetAt(long i) throws IOException {
+        return readEntry(i).getLong(8);
+    }
+
+    /**
+     * Lê as entradas [from, from + n) de uma vez.
+     */
+    void readRange(long from, int n, long[] timestamps, long[] offsets) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(n * ENTRY_BYTES);
+        readFully(data, from * ENTRY_BYTES);
+        data.flip();
+        for (int i = 0; i < n; i++) {
+            timestamps[i] = data.getLong();
+            offsets[i] = data.getLong();
+        }
+    }
+
+    /**
+     * Primeira entrada com timestamp maior ou igual ao informado (count se nenhuma).
+     */
+    long lowerBound(long timestampMicros) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestampAt(mid) < timestampMicros) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Primeira entrada com offset maior ou igual ao informado (count se nenhuma).
+     */
+    long lowerBoundOffset(long offset) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (offsetAt(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Descarta as entradas que apontam para depois do fim do log (registros
+     * perdidos numa queda).
+     */
+    void truncateFrom(long endOffset) throws IOException {
+        long keep = count;
+        while (keep > 0 && offsetAt(keep - 1) >= endOffset) {
+            keep--;
+        }
+        if (keep != count) {
+            channel.truncate(keep * ENTRY_BYTES);
+            count = keep;
+            lastTimestamp = count > 0 ? timestampAt(count - 1) : Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Compactação: remove as entradas que apontam para segmentos já apagados
+     * pela retenção, reescrevendo o arquivo só com o que sobrou.
+     */
+    void dropBefore(long startOffset) throws IOException {
+        long low = lowerBoundOffset(startOffset);
+        if (low == 0) {
+            return;
+        }
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = low * ENTRY_BYTES;
+            long end = count * ENTRY_BYTES;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, out);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    private ByteBuffer readEntry(long i) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(ENTRY_BYTES);
+        readFully(data, i * ENTRY_BYTES);
+        return data;
+    }
+
+    private void readFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) {
+                throw new IOException("Índice truncado: " + path);
+            }
+            position += read;
+        }
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,191 @@
+package br.com.tocka.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Um arquivo do log de mensagens, mapeado em memória com tamanho fixo.
+ *
+ * Cada registro é [int tamanho][int CRC32C do corpo][corpo]. O arquivo é
+ * criado já com o tamanho total (zerado), então um tamanho 0 marca o fim do
+ * log; ao abrir, a posição de escrita é recuperada lendo os registros até o
+ * primeiro vazio ou com CRC inválido (escrita interrompida).
+ */
+final class LogSegment implements Closeable {
+
+    static final int HEADER_BYTES = 8;
+
+    // Ex.: 00000000000016777216.log
+    static final String SUFFIX = ".log";
+
+    interface RecordVisitor {
+        void visit(int position, ByteBuffer body) throws IOException;
+    }
+
+    private final long baseOffset;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private int position;
+
+    private LogSegment(long baseOffset, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.baseOffset = baseOffset;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    static Path pathFor(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+    }
+
+    static long baseOffsetOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Abre (ou cria com capacity bytes) o segmento. Com recover, relê os
+     * registros para achar a posição de escrita; sem, o segmento é tratado
+     * como fechado (só leitura pelos offsets do índice).
+     */
+    static LogSegment open(Path directory, long baseOffset, int capacity, boolean recover) throws IOException {
+        Path path = pathFor(directory, baseOffset);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = Math.max(channel.size(), capacity);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            LogSegment segment = new LogSegment(baseOffset, path, channel, buffer);
+            segment.position = recover ? segment.scan(null) : segment.capacity;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Offset lógico logo depois do último registro.
+     */
+    long getEndOffset() {
+        return baseOffset + position;
+    }
+
+    int size() {
+        return position;
+    }
+
+    boolean isEmpty() {
+        return position == 0;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Grava o registro e devolve a posição dele no segmento, ou -1 se não couber.
+     */
+    int append(ByteBuffer body) {
+        int length = body.remaining();
+        if (position + HEADER_BYTES + length > capacity) {
+            return -1;
+        }
+
+        int start = position;
+        buffer.putInt(start + 4, crc32c(body.duplicate()));
+        buffer.position(start + HEADER_BYTES);
+        buffer.put(body);
+        // O tamanho por último: um registro só aparece inteiro
+        buffer.putInt(start, length);
+
+        position = start + HEADER_BYTES + length;
+        if (position + 4 <= capacity) {
+            // Sobras de uma escrita interrompida não viram registro
+            buffer.putInt(position, 0);
+        }
+        return start;
+    }
+
+    /**
+     * Corpo do registro na posição (view somente leitura sobre o mapeamento),
+     * ou null se não houver registro válido ali.
+     */
+    ByteBuffer read(int position) {
+        if (position < 0 || position + HEADER_BYTES > this.position) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER_BYTES + length > this.position) {
+            return null;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(position + HEADER_BYTES + length);
+        body.position(position + HEADER_BYTES);
+        return body.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Percorre os registros válidos na ordem e devolve a posição depois do último.
+     */
+    int scan(RecordVisitor visitor) throws IOException {
+        int current = 0;
+        while (current + HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(current);
+            if (length <= 0 || current + HEADER_BYTES + length > capacity) {
+                break;
+            }
+
+            ByteBuffer body = buffer.duplicate();
+            body.limit(current + HEADER_BYTES + length);
+            body.position(current + HEADER_BYTES);
+            body = body.slice();
+            if (crc32c(body.duplicate()) != buffer.getInt(current + 4)) {
+                break;
+            }
+
+            if (visitor != null) {
+                visitor.visit(current, body.asReadOnlyBuffer());
+            }
+            current += HEADER_BYTES + length;
+        }
+        return current;
+    }
+
+    void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Fecha e apaga o arquivo (retenção).
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private static int crc32c(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
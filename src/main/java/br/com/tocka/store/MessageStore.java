@@ -0,0 +1,435 @@
+package br.com.tocka.store;
+
+import br.com.tocka.model.ChatMessage;
+import br.com.tocka.model.HistoryEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Histórico local das conversas (ex.: ~/chat/history/alice).
+ *
+ * As mensagens vão para um log só de append, dividido em segmentos de tamanho
+ * fixo mapeados em memória (log/). Cada conversa tem um índice com o horário
+ * e o offset de cada mensagem dela no log (index/), então ler o final de uma
+ * conversa não exige percorrer o log nem carregar a conversa inteira.
+ *
+ * Retenção: quando passa de maxSegments segmentos, ou quando um segmento
+ * fechado é mais velho que a retenção, ele é apagado e os índices são
+ * compactados para não apontar mais para ele.
+ *
+ * Um arquivo LOCK impede que duas instâncias do mesmo usuário gravem juntas.
+ */
+public class MessageStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    private static final HistoryEvent.Type[] TYPES = HistoryEvent.Type.values();
+
+    private final Path logDirectory;
+    private final Path indexDirectory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long retentionMillis;
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private final Map<String, ConversationIndex> indexes = new HashMap<>();
+    private LogSegment active;
+
+    public MessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS, 0);
+    }
+
+    /**
+     * @param retentionMillis idade máxima de um segmento fechado; 0 = sem limite
+     */
+    public MessageStore(Path directory, int segmentBytes, int maxSegments, long retentionMillis) throws IOException {
+        this.logDirectory = directory.resolve("log");
+        this.indexDirectory = directory.resolve("index");
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(logDirectory);
+        Files.createDirectories(indexDirectory);
+
+        this.lockChannel = FileChannel.open(directory.resolve("LOCK"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Histórico já está aberto por outra instância: " + directory);
+        }
+        this.lock = acquired;
+
+        try {
+            openSegments();
+            openIndexes();
+            applyRetention();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void openSegments() throws IOException {
+        TreeSet<Long> baseOffsets = new TreeSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirectory, "*" + LogSegment.SUFFIX)) {
+            for (Path path : stream) {
+                baseOffsets.add(LogSegment.baseOffsetOf(path));
+            }
+        }
+        if (baseOffsets.isEmpty()) {
+            baseOffsets.add(0L);
+        }
+
+        // Só o último segmento pode ter escrita pela metade; os outros foram
+        // fechados no roll e não precisam ser relidos
+        for (long baseOffset : baseOffsets) {
+            boolean last = baseOffset == baseOffsets.last();
+            segments.put(baseOffset, LogSegment.open(logDirectory, baseOffset, segmentBytes, last));
+        }
+        active = segments.lastEntry().getValue();
+    }
+
+    private void openIndexes() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexDirectory, "*" + ConversationIndex.SUFFIX)) {
+            for (Path path : stream) {
+                String conversation = ConversationIndex.conversationOf(path);
+                ConversationIndex index = ConversationIndex.open(indexDirectory, conversation);
+                index.truncateFrom(active.getEndOffset());
+                index.dropBefore(segments.firstKey());
+                indexes.put(conversation, index);
+            }
+        }
+
+        if (indexes.isEmpty() && (segments.size() > 1 || !active.isEmpty())) {
+            rebuildIndexes();
+        }
+    }
+
+    /**
+     * Refaz os índices percorrendo o log (ex.: diretório index/ apagado).
+     */
+    private void rebuildIndexes() throws IOException {
+        for (LogSegment segment : segments.values()) {
+            long baseOffset = segment.getBaseOffset();
+            segment.scan((position, body) -> {
+                long timestampMicros = body.getLong(0);
+                body.position(9);
+                String conversation = getShortString(body);
+                index(conversation).append(timestampMicros, baseOffset + position);
+            });
+        }
+    }
+
+    /**
+     * Grava a mensagem no final do log e no índice da conversa.
+     */
+    public synchronized StoredMessage append(String conversation, HistoryEvent.Type type, ChatMessage message) throws IOException {
+        ByteBuffer body = encode(conversation, type, message);
+        if (body.remaining() + LogSegment.HEADER_BYTES > segmentBytes) {
+            throw new IOException("Mensagem grande demais para o histórico: " + body.remaining() + " bytes");
+        }
+
+        int position = active.append(body.duplicate());
+        if (position < 0) {
+            roll();
+            position = active.append(body.duplicate());
+        }
+
+        long offset = active.getBaseOffset() + position;
+        index(conversation).append(message.getTimestampMicros(), offset);
+        return new StoredMessage(offset, conversation, type, message);
+    }
+
+    /**
+     * As últimas limit mensagens da conversa, da mais antiga para a mais nova.
+     */
+    public synchronized List<StoredMessage> tail(String conversation, int limit) throws IOException {
+        ConversationIndex index = indexes.get(conversation);
+        if (index == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return readPage(index, index.count(), limit);
+    }
+
+    /**
+     * Página de até limit mensagens com horário anterior a beforeMicros
+     * (Long.MAX_VALUE = as mais recentes), da mais antiga para a mais nova.
+     * Busca binária no índice: o custo não depende do tamanho da conversa.
+     */
+    public synchronized List<StoredMessage> pageBeforeTime(String conversation, long beforeMicros, int limit) throws IOException {
+        ConversationIndex index = indexes.get(conversation);
+        if (index == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        long end = beforeMicros == Long.MAX_VALUE ? index.count() : index.lowerBound(beforeMicros);
+        return readPage(index, end, limit);
+    }
+
+    /**
+     * Página de até limit mensagens gravadas antes do offset (o da mensagem
+     * mais antiga da página anterior). Offsets não mudam com a compactação,
+     * então servem de cursor para continuar voltando no histórico.
+     */
+    public synchronized List<StoredMessage> pageBeforeOffset(String conversation, long beforeOffset, int limit) throws IOException {
+        ConversationIndex index = indexes.get(conversation);
+        if (index == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        return readPage(index, index.lowerBoundOffset(beforeOffset), limit);
+    }
+
+    private List<StoredMessage> readPage(ConversationIndex index, long end, int limit) throws IOException {
+        int n = (int) Math.min(limit, end);
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+        return readEntries(index, end - n, n);
+    }
+
+    private List<StoredMessage> readEntries(ConversationIndex index, long from, int n) throws IOException {
+        long[] timestamps = new long[n];
+        long[] offsets = new long[n];
+        index.readRange(from, n, timestamps, offsets);
+
+        List<StoredMessage> messages = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            StoredMessage message = read(offsets[i]);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Mensagem no offset do log, ou null se o segmento já foi apagado.
+     */
+    public synchronized StoredMessage read(long offset) {
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer body = entry.getValue().read((int) (offset - entry.getKey()));
+        if (body == null) {
+            return null;
+        }
+        return decode(offset, body);
+    }
+
+    /**
+     * Offset da mensagem mais antiga ainda no log (o resto foi apagado pela retenção).
+     */
+    public synchronized long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Offset onde a próxima mensagem será gravada.
+     */
+    public synchronized long getEndOffset() {
+        return active.getEndOffset();
+    }
+
+    public interface MessageVisitor {
+        void visit(StoredMessage message) throws IOException;
+    }
+
+    /**
+     * Percorre, na ordem do log, as mensagens gravadas a partir do offset.
+     */
+    public synchronized void forEachFrom(long fromOffset, MessageVisitor visitor) throws IOException {
+        Long first = segments.floorKey(fromOffset);
+        for (LogSegment segment : segments.tailMap(first == null ? segments.firstKey() : first, true).values()) {
+            long baseOffset = segment.getBaseOffset();
+            segment.scan((position, body) -> {
+                long offset = baseOffset + position;
+                if (offset >= fromOffset) {
+                    visitor.visit(decode(offset, body));
+                }
+            });
+        }
+    }
+
+    public synchronized Set<String> getConversations() {
+        return new TreeSet<>(indexes.keySet());
+    }
+
+    public synchronized long getMessageCount(String conversation) {
+        ConversationIndex index = indexes.get(conversation);
+        return index == null ? 0 : index.count();
+    }
+
+    private ConversationIndex index(String conversation) throws IOException {
+        ConversationIndex index = indexes.get(conversation);
+        if (index == null) {
+            index = ConversationIndex.open(indexDirectory, conversation);
+            indexes.put(conversation, index);
+        }
+        return index;
+    }
+
+    private void roll() throws IOException {
+        active.flush();
+        long baseOffset = active.getEndOffset();
+        active = LogSegment.open(logDirectory, baseOffset, segmentBytes, true);
+        segments.put(baseOffset, active);
+        applyRetention();
+    }
+
+    /**
+     * Apaga os segmentos fechados que passaram do limite e compacta os índices.
+     */
+    private void applyRetention() throws IOException {
+        boolean deleted = false;
+        long now = System.currentTimeMillis();
+
+        Iterator<LogSegment> oldest = segments.values().iterator();
+        while (oldest.hasNext()) {
+            LogSegment segment = oldest.next();
+            if (segment == active) {
+                break;
+            }
+            boolean tooMany = segments.size() > maxSegments;
+            boolean tooOld = retentionMillis > 0
+                    && now - Files.getLastModifiedTime(segment.getPath()).toMillis() > retentionMillis;
+            if (!tooMany && !tooOld) {
+                break;
+            }
+            segment.delete();
+            oldest.remove();
+            deleted = true;
+        }
+
+        if (!deleted) {
+            return;
+        }
+
+        long startOffset = segments.firstKey();
+        Iterator<ConversationIndex> it = indexes.values().iterator();
+        while (it.hasNext()) {
+            ConversationIndex index = it.next();
+            index.dropBefore(startOffset);
+            if (index.count() == 0) {
+                index.delete();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Manda para o disco o que está só no mapeamento/cache do SO.
+     */
+    public synchronized void flush() throws IOException {
+        if (active != null) {
+            active.flush();
+        }
+        for (ConversationIndex index : indexes.values()) {
+            index.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (LogSegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        segments.clear();
+        for (ConversationIndex index : indexes.values()) {
+            try {
+                index.force();
+                index.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        indexes.clear();
+        active = null;
+
+        if (lock.isValid()) {
+            lock.release();
+        }
+        lockChannel.close();
+    }
+
+    // Registro: [long timestamp][byte tipo][conversa][producer][consumer][int + conteúdo UTF-8]
+    private static ByteBuffer encode(String conversation, HistoryEvent.Type type, ChatMessage message) throws IOException {
+        byte[] conversationUtf8 = shortString(conversation);
+        byte[] producerUtf8 = shortString(message.getProducer());
+        byte[] consumerUtf8 = shortString(message.getConsumer());
+        byte[] contentUtf8 = message.getContentUtf8();
+
+        ByteBuffer body = ByteBuffer.allocate(8 + 1
+                + 2 + conversationUtf8.length
+                + 2 + producerUtf8.length
+                + 2 + consumerUtf8.length
+                + 4 + contentUtf8.length);
+        body.putLong(message.getTimestampMicros());
+        body.put((byte) type.ordinal());
+        body.putShort((short) conversationUtf8.length).put(conversationUtf8);
+        body.putShort((short) producerUtf8.length).put(producerUtf8);
+        body.putShort((short) consumerUtf8.length).put(consumerUtf8);
+        body.putInt(contentUtf8.length).put(contentUtf8);
+        body.flip();
+        return body;
+    }
+
+    private static StoredMessage decode(long offset, ByteBuffer body) {
+        long timestampMicros = body.getLong();
+        HistoryEvent.Type type = TYPES[body.get()];
+        String conversation = getShortString(body);
+        String producer = getShortString(body);
+        String consumer = getShortString(body);
+        byte[] content = new byte[body.getInt()];
+        body.get(content);
+
+        ChatMessage message = new ChatMessage(producer, consumer, new String(content, StandardCharsets.UTF_8), timestampMicros);
+        return new StoredMessage(offset, conversation, type, message);
+    }
+
+    private static byte[] shortString(String value) throws IOException {
+        byte[] utf8 = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) {
+            throw new IOException("Nome grande demais para o histórico");
+        }
+        return utf8;
+    }
+
+    private static String getShortString(ByteBuffer body) {
+        byte[] utf8 = new byte[body.getShort() & 0xFFFF];
+        body.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
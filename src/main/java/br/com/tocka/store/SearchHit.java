@@ -0,0 +1,24 @@
+package br.com.tocka.store;
+
+/**
+ * Resultado de uma busca: a mensagem e a pontuação (soma do IDF dos termos
+ * da busca que aparecem nela).
+ */
+public final class SearchHit {
+
+    private final StoredMessage message;
+    private final double score;
+
+    public SearchHit(StoredMessage message, double score) {
+        this.message = message;
+        this.score = score;
+    }
+
+    public StoredMessage getMessage() {
+        return message;
+    }
+
+    public double getScore() {
+        return score;
+    }
+}
@@ -0,0 +1,505 @@
+package br.com.tocka.store;
+
+import br.com.tocka.store.SearchSegment.PostingBuffer;
+import br.com.tocka.store.SearchSegment.TermPostings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Índice invertido do histórico local (ex.: ~/chat/history/alice/search).
+ *
+ * Cada termo tem uma posting list com o offset no log e a conversa de cada
+ * mensagem que contém o termo. As mensagens novas entram numa tabela em
+ * memória que, ao passar de FLUSH_POSTINGS postings, vira um segmento imutável
+ * em disco (SearchSegment); segmentos vizinhos de tamanho parecido são
+ * juntados, então ficam O(log n) segmentos. No merge, postings de mensagens
+ * já apagadas pela retenção do log são descartadas.
+ *
+ * Tudo roda numa thread própria: quem grava mensagens (a GUI) só enfileira,
+ * e as buscas veem tudo que foi enfileirado antes delas. Ao abrir, o que está
+ * no log depois do último segmento é reindexado.
+ *
+ * Pontuação: soma do IDF dos termos da busca presentes na mensagem; empate
+ * fica com a mais recente.
+ */
+public class SearchIndex implements Closeable {
+
+    public static final int DEFAULT_MAX_HITS = 20;
+
+    private static final int FLUSH_POSTINGS = 500_000;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final String CONVERSATIONS_FILE = "conversations";
+
+    // Prefixo que o ChatController coloca no conteúdo ("@bob diz: ...")
+    private static final String SAYS = " diz: ";
+
+    private static final Comparator<byte[]> BYTE_ORDER = (a, b) -> {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    };
+
+    private final Path directory;
+    private final MessageStore messageStore;
+    private final ExecutorService executor;
+
+    // Só acessados pela thread do índice
+    private final List<SearchSegment> segments = new ArrayList<>();
+    private Map<String, PostingBuffer> memtable = new HashMap<>();
+    private int memtablePostings;
+    private long memtableDocuments;
+    private long memtableStart;
+    private long indexedEnd;
+    private final Map<String, Integer> conversationIds = new HashMap<>();
+    private final List<String> conversations = new ArrayList<>();
+    // Conversas acrescentadas ao arquivo desde o último fsync dele
+    private boolean conversationsDirty;
+
+    public SearchIndex(Path directory, MessageStore messageStore) throws IOException {
+        this.directory = directory;
+        this.messageStore = messageStore;
+        Files.createDirectories(directory);
+
+        loadConversations();
+        openSegments();
+        this.memtableStart = indexedEnd;
+
+        this.executor = Executors.newSingleThreadExecutor((r) -> {
+            Thread t = new Thread(r, "SearchIndex");
+            t.setDaemon(true);
+            return t;
+        });
+        // Reindexa o que ficou só na memória da última execução
+        this.executor.execute(() -> {
+            try {
+                messageStore.forEachFrom(indexedEnd, this::addNow);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void loadConversations() throws IOException {
+        Path file = directory.resolve(CONVERSATIONS_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        for (String conversation : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            conversationIds.put(conversation, conversations.size());
+            conversations.add(conversation);
+        }
+    }
+
+    private void openSegments() throws IOException {
+        TreeMap<Long, Path> paths = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(path);
+                } else if (name.endsWith(SearchSegment.SUFFIX)) {
+                    paths.put(Long.parseLong(name.substring(0, name.length() - SearchSegment.SUFFIX.length())), path);
+                }
+            }
+        }
+
+        for (Path path : paths.values()) {
+            SearchSegment segment = SearchSegment.open(path);
+            if (segment.getEndOffset() <= indexedEnd) {
+                // Sobra de um merge interrompido: o segmento novo já cobre este
+                segment.delete();
+                continue;
+            }
+            segments.add(segment);
+            indexedEnd = segment.getEndOffset();
+        }
+    }
+
+    /**
+     * Enfileira a mensagem para indexação.
+     */
+    public void add(StoredMessage message) {
+        try {
+            executor.execute(() -> {
+                try {
+                    addNow(message);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Índice já fechado; a mensagem é reindexada do log na próxima abertura
+        }
+    }
+
+    private void addNow(StoredMessage message) throws IOException {
+        long offset = message.getOffset();
+        if (offset < indexedEnd) {
+            return;
+        }
+
+        int conversationId = conversationId(message.getConversation());
+        for (String term : tokenize(indexableText(message.getMessage().getContent()))) {
+            memtable.computeIfAbsent(term, k -> new PostingBuffer()).add(offset, conversationId);
+            memtablePostings++;
+        }
+        memtableDocuments++;
+        indexedEnd = offset + 1;
+
+        if (memtablePostings >= FLUSH_POSTINGS) {
+            flush();
+        }
+    }
+
+    private int conversationId(String conversation) throws IOException {
+        Integer id = conversationIds.get(conversation);
+        if (id == null) {
+            id = conversations.size();
+            Files.write(directory.resolve(CONVERSATIONS_FILE),
+                    Collections.singletonList(conversation), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            conversationIds.put(conversation, id);
+            conversations.add(conversation);
+            conversationsDirty = true;
+        }
+        return id;
+    }
+
+    /**
+     * Um segmento guarda só o id da conversa: o arquivo de conversas precisa
+     * estar no disco antes de qualquer segmento que use ids novos, senão um
+     * crash deixa postings apontando para conversas que não existem.
+     */
+    private void syncConversations() throws IOException {
+        if (!conversationsDirty) {
+            return;
+        }
+        try (FileChannel file = FileChannel.open(directory.resolve(CONVERSATIONS_FILE), StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+        conversationsDirty = false;
+    }
+
+    private void flush() throws IOException {
+        if (memtable.isEmpty()) {
+            return;
+        }
+
+        List<TermPostings> terms = new ArrayList<>(memtable.size());
+        for (Map.Entry<String, PostingBuffer> entry : memtable.entrySet()) {
+            PostingBuffer postings = entry.getValue();
+            terms.add(new TermPostings(entry.getKey().getBytes(StandardCharsets.UTF_8), postings.count, postings.data, postings.length));
+        }
+        terms.sort((a, b) -> BYTE_ORDER.compare(a.term, b.term));
+
+        syncConversations();
+        segments.add(SearchSegment.write(directory, memtableStart, indexedEnd, memtableDocuments, terms));
+        memtable = new HashMap<>();
+        memtablePostings = 0;
+        memtableDocuments = 0;
+        memtableStart = indexedEnd;
+
+        mergeSegments();
+    }
+
+    /**
+     * Junta o segmento mais novo com o anterior enquanto o anterior não for
+     * maior que ele (como um contador binário), ou se houver segmentos demais.
+     */
+    private void mergeSegments() throws IOException {
+        while (segments.size() >= 2) {
+            SearchSegment newer = segments.get(segments.size() - 1);
+            SearchSegment older = segments.get(segments.size() - 2);
+            if (older.sizeInBytes() > newer.sizeInBytes() && segments.size() <= MAX_SEGMENTS) {
+                return;
+            }
+            SearchSegment merged = merge(older, newer);
+            segments.remove(segments.size() - 1);
+            segments.set(segments.size() - 1, merged);
+        }
+    }
+
+    private SearchSegment merge(SearchSegment older, SearchSegment newer) throws IOException {
+        long startOffset = messageStore.getStartOffset();
+        List<TermPostings> terms = new ArrayList<>();
+
+        int i = 0;
+        int j = 0;
+        while (i < older.getTermCount() || j < newer.getTermCount()) {
+            byte[] olderTerm = i < older.getTermCount() ? older.termAt(i) : null;
+            byte[] newerTerm = j < newer.getTermCount() ? newer.termAt(j) : null;
+            int cmp = olderTerm == null ? 1 : newerTerm == null ? -1 : BYTE_ORDER.compare(olderTerm, newerTerm);
+
+            PostingBuffer postings = new PostingBuffer();
+            if (cmp <= 0) {
+                copyPostings(older.postingsAt(i), postings, startOffset);
+                i++;
+            }
+            if (cmp >= 0) {
+                copyPostings(newer.postingsAt(j), postings, startOffset);
+                j++;
+            }
+            if (postings.count > 0) {
+                terms.add(new TermPostings(cmp <= 0 ? olderTerm : newerTerm, postings.count, postings.data, postings.length));
+            }
+        }
+
+        // O segmento juntado fica no lugar do mais antigo (mesmo nome)
+        SearchSegment merged = SearchSegment.write(directory, older.getStartOffset(), newer.getEndOffset(),
+                older.getDocumentCount() + newer.getDocumentCount(), terms);
+        older.close();
+        newer.delete();
+        return merged;
+    }
+
+    // Recodifica as postings, descartando as de mensagens já fora do log
+    private static void copyPostings(ByteBuffer source, PostingBuffer target, long startOffset) {
+        long offset = 0;
+        while (source.hasRemaining()) {
+            offset += SearchSegment.getVarLong(source);
+            int conversationId = (int) SearchSegment.getVarLong(source);
+            if (offset >= startOffset) {
+                target.add(offset, conversationId);
+            }
+        }
+    }
+
+    /**
+     * Busca as mensagens com os termos (qualquer um deles), opcionalmente só
+     * numa conversa ("@usuario" / "#grupo"), ordenadas pela pontuação.
+     */
+    public CompletableFuture<List<SearchHit>> search(String query, String conversation, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return searchNow(query, conversation, limit);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private List<SearchHit> searchNow(String query, String conversation, int limit) throws IOException {
+        Set<String> terms = tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        int conversationFilter = -1;
+        if (conversation != null) {
+            Integer id = conversationIds.get(conversation);
+            if (id == null) {
+                return Collections.emptyList();
+            }
+            conversationFilter = id;
+        }
+
+        long documents = memtableDocuments;
+        for (SearchSegment segment : segments) {
+            documents += segment.getDocumentCount();
+        }
+
+        // Um cursor por termo, percorrendo as posting lists de todos os segmentos em ordem
+        PriorityQueue<PostingCursor> cursors = new PriorityQueue<>(Comparator.comparingLong((PostingCursor c) -> c.offset));
+        for (String term : terms) {
+            byte[] termUtf8 = term.getBytes(StandardCharsets.UTF_8);
+            List<ByteBuffer> sources = new ArrayList<>();
+            long documentFrequency = 0;
+            for (SearchSegment segment : segments) {
+                int entry = segment.find(termUtf8);
+                if (entry >= 0) {
+                    sources.add(segment.postingsAt(entry));
+                    documentFrequency += segment.postingCountAt(entry);
+                }
+            }
+            PostingBuffer pending = memtable.get(term);
+            if (pending != null) {
+                sources.add(pending.view());
+                documentFrequency += pending.count;
+            }
+            if (documentFrequency == 0) {
+                continue;
+            }
+
+            PostingCursor cursor = new PostingCursor(sources, Math.log(1.0 + (double) documents / documentFrequency));
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+
+        long startOffset = messageStore.getStartOffset();
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, Candidate.ORDER);
+        while (!cursors.isEmpty()) {
+            PostingCursor cursor = cursors.poll();
+            long offset = cursor.offset;
+            int conversationId = cursor.conversationId;
+            double score = cursor.idf;
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+            while (!cursors.isEmpty() && cursors.peek().offset == offset) {
+                PostingCursor same = cursors.poll();
+                score += same.idf;
+                if (same.next()) {
+                    cursors.add(same);
+                }
+            }
+
+            if (offset < startOffset || (conversationFilter >= 0 && conversationId != conversationFilter)) {
+                continue;
+            }
+            best.add(new Candidate(offset, score));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+
+        List<Candidate> ranked = new ArrayList<>(best);
+        ranked.sort(Candidate.ORDER.reversed());
+        List<SearchHit> hits = new ArrayList<>(ranked.size());
+        for (Candidate candidate : ranked) {
+            StoredMessage message = messageStore.read(candidate.offset);
+            if (message != null) {
+                hits.add(new SearchHit(message, candidate.score));
+            }
+        }
+        return hits;
+    }
+
+    private static final class PostingCursor {
+        private final List<ByteBuffer> sources;
+        private final double idf;
+        private int source;
+        private long lastOffset;
+        long offset;
+        int conversationId;
+
+        PostingCursor(List<ByteBuffer> sources, double idf) {
+            this.sources = sources;
+            this.idf = idf;
+        }
+
+        boolean next() {
+            while (source < sources.size()) {
+                ByteBuffer current = sources.get(source);
+                if (current.hasRemaining()) {
+                    lastOffset += SearchSegment.getVarLong(current);
+                    conversationId = (int) SearchSegment.getVarLong(current);
+                    offset = lastOffset;
+                    return true;
+                }
+                // Cada segmento começa a contar os deltas do zero
+                source++;
+                lastOffset = 0;
+            }
+            return false;
+        }
+    }
+
+    private static final class Candidate {
+        // Menor pontuação primeiro; no empate, a mais antiga
+        static final Comparator<Candidate> ORDER = Comparator
+                .comparingDouble((Candidate c) -> c.score)
+                .thenComparingLong(c -> c.offset);
+
+        final long offset;
+        final double score;
+
+        Candidate(long offset, double score) {
+            this.offset = offset;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Texto da mensagem sem o prefixo "<destino> diz: ".
+     */
+    static String indexableText(String content) {
+        int start = content.indexOf(SAYS);
+        return start >= 0 ? content.substring(start + SAYS.length()) : content;
+    }
+
+    /**
+     * Termos distintos do texto: minúsculas, sem acento, separados por tudo
+     * que não for letra ou dígito.
+     */
+    public static Set<String> tokenize(String text) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.ROOT);
+
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean wordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(folded.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Grava o que está em memória num segmento e fecha os arquivos.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            executor.submit(() -> {
+                flush();
+                for (SearchSegment segment : segments) {
+                    segment.close();
+                }
+                segments.clear();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new IOException("Erro ao fechar índice de busca", e);
+        } finally {
+            executor.shutdown();
+        }
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
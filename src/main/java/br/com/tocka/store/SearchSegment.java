@@ -0,0 +1,294 @@
+package br.com.tocka.store;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Arquivo imutável do índice de busca, cobrindo os offsets do log
+ * [startOffset, endOffset).
+ *
+ * Layout:
+ *   cabeçalho  [int magic][int termos][long startOffset][long endOffset][long documentos]
+ *   dicionário termos x [int posição do termo][int tamanho][int posição da posting list][int tamanho][int postings]
+ *   termos     UTF-8, em ordem de bytes (para a busca binária)
+ *   postings   por posting: varint(delta do offset) varint(id da conversa)
+ *
+ * O arquivo é mapeado só para leitura: procurar um termo é uma busca binária
+ * no dicionário, sem carregar nada para o heap.
+ */
+final class SearchSegment implements Closeable {
+
+    static final String SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x53524348; // "SRCH"
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8;
+    private static final int ENTRY_BYTES = 5 * 4;
+
+    /**
+     * Termo com a posting list já codificada, para gravar um segmento.
+     */
+    static final class TermPostings {
+        final byte[] term;
+        final int count;
+        final byte[] data;
+        final int length;
+
+        TermPostings(byte[] term, int count, byte[] data, int length) {
+            this.term = term;
+            this.count = count;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int termCount;
+    private final long startOffset;
+    private final long endOffset;
+    private final long documentCount;
+
+    private SearchSegment(Path path, FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Segmento de busca inválido: " + path);
+        }
+        this.termCount = buffer.getInt(4);
+        this.startOffset = buffer.getLong(8);
+        this.endOffset = buffer.getLong(16);
+        this.documentCount = buffer.getLong(24);
+    }
+
+    static Path pathFor(Path directory, long startOffset) {
+        return directory.resolve(String.format("%020d%s", startOffset, SUFFIX));
+    }
+
+    static SearchSegment open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new SearchSegment(path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Grava os termos (já em ordem de bytes) num arquivo novo e abre. Escreve
+     * num .tmp e renomeia, então um segmento nunca aparece pela metade.
+     */
+    static SearchSegment write(Path directory, long startOffset, long endOffset, long documentCount, List<TermPostings> terms) throws IOException {
+        Path path = pathFor(directory, startOffset);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream stream = Channels.newOutputStream(out);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+
+            data.writeInt(MAGIC);
+            data.writeInt(terms.size());
+            data.writeLong(startOffset);
+            data.writeLong(endOffset);
+            data.writeLong(documentCount);
+
+            long termsBase = HEADER_BYTES + (long) terms.size() * ENTRY_BYTES;
+            long termsLength = 0;
+            for (TermPostings term : terms) {
+                termsLength += term.term.length;
+            }
+            long postingsBase = termsBase + termsLength;
+
+            long termPosition = termsBase;
+            long postingsPosition = postingsBase;
+            for (TermPostings term : terms) {
+                data.writeInt(checkedPosition(termPosition));
+                data.writeInt(term.term.length);
+                data.writeInt(checkedPosition(postingsPosition));
+                data.writeInt(term.length);
+                data.writeInt(term.count);
+                termPosition += term.term.length;
+                postingsPosition += term.length;
+            }
+            checkedPosition(postingsPosition);
+            for (TermPostings term : terms) {
+                data.write(term.term);
+            }
+            for (TermPostings term : terms) {
+                data.write(term.data, 0, term.length);
+            }
+            data.flush();
+            out.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    // O arquivo é mapeado num único buffer: precisa caber em 2 GiB
+    private static int checkedPosition(long position) throws IOException {
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Segmento de busca grande demais");
+        }
+        return (int) position;
+    }
+
+    long getStartOffset() {
+        return startOffset;
+    }
+
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    long getDocumentCount() {
+        return documentCount;
+    }
+
+    int getTermCount() {
+        return termCount;
+    }
+
+    long sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Posição do termo no dicionário, ou -1 se o segmento não tem o termo.
+     */
+    int find(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareTerm(int entry, byte[] term) {
+        int base = HEADER_BYTES + entry * ENTRY_BYTES;
+        int position = buffer.getInt(base);
+        int length = buffer.getInt(base + 4);
+        int common = Math.min(length, term.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(position + i) & 0xFF, term[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    byte[] termAt(int entry) {
+        int base = HEADER_BYTES + entry * ENTRY_BYTES;
+        byte[] term = new byte[buffer.getInt(base + 4)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(buffer.getInt(base));
+        view.get(term);
+        return term;
+    }
+
+    int postingCountAt(int entry) {
+        return buffer.getInt(HEADER_BYTES + entry * ENTRY_BYTES + 16);
+    }
+
+    /**
+     * Posting list codificada do termo (view sobre o mapeamento).
+     */
+    ByteBuffer postingsAt(int entry) {
+        int base = HEADER_BYTES + entry * ENTRY_BYTES;
+        int position = buffer.getInt(base + 8);
+        int length = buffer.getInt(base + 12);
+        ByteBuffer view = buffer.duplicate();
+        view.limit(position + length);
+        view.position(position);
+        return view.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    static void putVarLong(PostingBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Posting list em construção (memória ou merge): bytes codificados mais
+     * o último offset, para calcular o próximo delta.
+     */
+    static final class PostingBuffer {
+        byte[] data = new byte[16];
+        int length;
+        int count;
+        long lastOffset;
+
+        void add(long offset, int conversationId) {
+            putVarLong(this, offset - lastOffset);
+            putVarLong(this, conversationId);
+            lastOffset = offset;
+            count++;
+        }
+
+        void put(byte b) {
+            if (length == data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            data[length++] = b;
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(data, 0, length).slice();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package br.com.tocka.store;
+
+import br.com.tocka.model.ChatMessage;
+import br.com.tocka.model.HistoryEvent;
+
+/**
+ * Mensagem lida do histórico local, com a conversa, a direção e o offset
+ * dela no log.
+ */
+public final class StoredMessage {
+
+    private final long offset;
+    private final String conversation;
+    private final HistoryEvent.Type type;
+    private final ChatMessage message;
+
+    public StoredMessage(long offset, String conversation, HistoryEvent.Type type, ChatMessage message) {
+        this.offset = offset;
+        this.conversation = conversation;
+        this.type = type;
+        this.message = message;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getConversation() {
+        return conversation;
+    }
+
+    public HistoryEvent.Type getType() {
+        return type;
+    }
+
+    public ChatMessage getMessage() {
+        return message;
+    }
+}
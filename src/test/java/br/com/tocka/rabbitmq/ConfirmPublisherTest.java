@@ -0,0 +1,98 @@
+package br.com.tocka.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmCallback;
+import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.Return;
+import com.rabbitmq.client.ReturnCallback;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confirmações do ConfirmPublisher contra um channel falso: o teste faz o
+ * papel do broker, mandando basic.return e basic.ack na ordem do RabbitMQ.
+ */
+public class ConfirmPublisherTest extends TestCase {
+
+    private final List<AMQP.BasicProperties> published = new ArrayList<>();
+    private ConfirmCallback ackCallback;
+    private ReturnCallback returnCallback;
+    private long nextSeqNo = 1;
+    private ConfirmPublisher publisher;
+
+    @Override
+    protected void setUp() throws Exception {
+        Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "addConfirmListener":
+                            if (args.length == 2) {
+                                ackCallback = (ConfirmCallback) args[0];
+                            }
+                            return null;
+                        case "addReturnListener":
+                            if (args[0] instanceof ReturnCallback) {
+                                returnCallback = (ReturnCallback) args[0];
+                            }
+                            return null;
+                        case "getNextPublishSeqNo":
+                            return nextSeqNo;
+                        case "basicPublish":
+                            nextSeqNo++;
+                            published.add((AMQP.BasicProperties) args[args.length - 2]);
+                            return null;
+                        case "isOpen":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+        publisher = new ConfirmPublisher(channel, 16);
+    }
+
+    private void returnMessage(AMQP.BasicProperties properties) {
+        returnCallback.handle(new Return(312, "NO_ROUTE", "chat", "fila_apagada", properties, new byte[0]));
+    }
+
+    public void testReturnedPublishFailsEvenThoughItIsAcked() throws Exception {
+        CompletableFuture<Void> routed = publisher.publish("chat", "bob", MessageProperties.PERSISTENT_BASIC, new byte[]{1});
+        CompletableFuture<Void> unroutable = publisher.publish("chat", "fila_apagada", MessageProperties.PERSISTENT_BASIC, new byte[]{2});
+
+        returnMessage(published.get(1));
+        ackCallback.handle(2, true);
+
+        routed.get(1, TimeUnit.SECONDS);
+        try {
+            unroutable.get(1, TimeUnit.SECONDS);
+            fail("Mensagem devolvida pelo broker não pode contar como entregue");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, publisher.getOutstandingCount());
+    }
+
+    public void testPublishIdKeepsCallerHeaders() throws Exception {
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .headers(Collections.singletonMap("tipo", "arquivo"))
+                .build();
+        CompletableFuture<Void> future = publisher.publish("chat", "bob", properties, new byte[0]);
+
+        AMQP.BasicProperties sent = published.get(0);
+        assertEquals("arquivo", sent.getHeaders().get("tipo"));
+        assertNotNull(sent.getHeaders().get(ConfirmPublisher.PUBLISH_ID_HEADER));
+
+        // Um return de outra origem (sem o header) não afeta a publicação
+        returnMessage(properties);
+        ackCallback.handle(1, false);
+        future.get(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,184 @@
+package br.com.tocka.rabbitmq;
+
+import br.com.tocka.payload.PayloadProto.Content;
+import br.com.tocka.payload.PayloadProto.FileManifest;
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import com.google.protobuf.ByteString;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Validação dos campos que vêm do remetente antes de qualquer coisa tocar o
+ * disco: transfer_id, sequence/offset e o nome do arquivo.
+ */
+public class FileAssemblerTest extends TestCase {
+
+    private static final int CHUNK_SIZE = FileTransferManager.CHUNK_SIZE;
+
+    private Path directory;
+    private Path downloads;
+    private FileAssembler assembler;
+    private byte[] file;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("file-assembler-test");
+        downloads = directory.resolve("downloads");
+        assembler = new FileAssembler(downloads.toString());
+
+        // Dois chunks: um cheio e um de 10 bytes
+        file = new byte[CHUNK_SIZE + 10];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) i;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        assembler.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+    private PayloadRequest chunk(String transferId, String name, int sequence, long offset, int length) {
+        int start = (int) Math.max(0, Math.min(offset, file.length));
+        ByteString body = ByteString.copyFrom(file, start, Math.max(0, Math.min(length, file.length - start)));
+        return PayloadRequest.newBuilder()
+                .setEmmitter("alice")
+                .setReceiver("bob")
+                .setContent(Content.newBuilder()
+                        .setType("file")
+                        .setName(name)
+                        .setTransferId(transferId)
+                        .setSequence(sequence)
+                        .setTotal(2)
+                        .setOffset(offset)
+                        .setFileSize(file.length)
+                        .setCrc32C(FileAssembler.crc32c(body))
+                        .setBody(body))
+                .build();
+    }
+
+    private PayloadRequest chunk(String transferId, String name, int sequence) {
+        return chunk(transferId, name, sequence, (long) sequence * CHUNK_SIZE, Math.min(CHUNK_SIZE, file.length - sequence * CHUNK_SIZE));
+    }
+
+    private PayloadRequest manifest(String transferId, String name) {
+        return PayloadRequest.newBuilder()
+                .setEmmitter("alice")
+                .setContent(Content.newBuilder()
+                        .setType("file_manifest")
+                        .setName(name)
+                        .setManifest(FileManifest.newBuilder()
+                                .setTransferId(transferId)
+                                .setName(name)
+                                .setFileSize(file.length)
+                                .setChunkSize(CHUNK_SIZE)
+                                .setTotal(2)
+                                .addChunkCrc32C(FileAssembler.crc32c(ByteString.copyFrom(file, 0, CHUNK_SIZE)))
+                                .addChunkCrc32C(FileAssembler.crc32c(ByteString.copyFrom(file, CHUNK_SIZE, 10)))))
+                .build();
+    }
+
+    private void assertRejected(PayloadRequest payload) throws IOException {
+        try {
+            assembler.accept(payload);
+            fail("Payload inválido aceito: " + payload.getContent().getTransferId() + " seq " + payload.getContent().getSequence());
+        } catch (IOException e) {
+            // esperado
+        }
+    }
+
+    private List<String> downloadedFiles() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> files = Files.list(downloads)) {
+            files.forEach((path) -> names.add(path.getFileName().toString()));
+        }
+        names.sort(null);
+        return names;
+    }
+
+    public void testRejectsInvalidTransferIds() throws Exception {
+        String valid = UUID.randomUUID().toString();
+        for (String transferId : Arrays.asList("", "../../tmp/x", "abc", valid.toUpperCase(), valid + "/..", "0-0-0-0-0")) {
+            assertRejected(chunk(transferId, "a.txt", 0));
+            assertRejected(manifest(transferId, "a.txt"));
+        }
+        assertTrue("Nada pode ser criado com um id inválido: " + downloadedFiles(), downloadedFiles().isEmpty());
+    }
+
+    public void testRejectsOutOfRangeSequenceAndOffset() throws Exception {
+        String transferId = UUID.randomUUID().toString();
+
+        assertRejected(chunk(transferId, "a.bin", 2));
+        assertRejected(chunk(transferId, "a.bin", -1, 0, 10));
+        assertRejected(chunk(transferId, "a.bin", Integer.MAX_VALUE, 0, 10));
+        assertTrue(downloadedFiles().isEmpty());
+
+        assertNull(assembler.accept(manifest(transferId, "a.bin")));
+        // Offset que não é sequence * chunk_size, fora do arquivo ou com tamanho errado
+        assertRejected(chunk(transferId, "a.bin", 1, 0, 10));
+        assertRejected(chunk(transferId, "a.bin", 1, CHUNK_SIZE + 1, 9));
+        assertRejected(chunk(transferId, "a.bin", 1, Long.MAX_VALUE - 5, 10));
+        assertRejected(chunk(transferId, "a.bin", 0, 0, 10));
+        // Total diferente do manifesto
+        assertRejected(chunk(transferId, "a.bin", 0).toBuilder()
+                .setContent(chunk(transferId, "a.bin", 0).getContent().toBuilder().setTotal(3).setFileSize(2L * CHUNK_SIZE + 1))
+                .build());
+
+        // Os chunks válidos continuam completando a transferência
+        assertNull(assembler.accept(chunk(transferId, "a.bin", 1)));
+        Path saved = assembler.accept(chunk(transferId, "a.bin", 0));
+        assertNotNull(saved);
+        assertTrue(Arrays.equals(file, Files.readAllBytes(saved)));
+    }
+
+    public void testFileNameCannotLeaveTheDownloadDirectory() throws Exception {
+        String transferId = UUID.randomUUID().toString();
+        String name = "../../fora.txt";
+        assertNull(assembler.accept(chunk(transferId, name, 0)));
+        Path saved = assembler.accept(chunk(transferId, name, 1));
+        assertEquals(downloads.resolve("fora.txt"), saved);
+        assertFalse(Files.exists(directory.resolve("fora.txt")));
+
+        // Formato antigo (arquivo numa mensagem só), com separador do Windows
+        PayloadRequest single = PayloadRequest.newBuilder()
+                .setEmmitter("alice")
+                .setContent(Content.newBuilder()
+                        .setType("file")
+                        .setName("..\\..\\outro.txt")
+                        .setBody(ByteString.copyFromUtf8("oi")))
+                .build();
+        assertEquals(downloads.resolve("outro.txt"), assembler.accept(single));
+
+        for (String invalid : Arrays.asList("..", "dir/..", "dir/", ".", "")) {
+            String id = UUID.randomUUID().toString();
+            assertRejected(manifest(id, invalid));
+            assertRejected(chunk(id, invalid, 0));
+        }
+        assertEquals(Arrays.asList("." + transferId + ".done", "fora.txt", "outro.txt"), downloadedFiles());
+    }
+
+    public void testCompletedTransferIsIgnoredAfterRestart() throws Exception {
+        String transferId = UUID.randomUUID().toString();
+        assembler.accept(chunk(transferId, "a.bin", 0));
+        assertNotNull(assembler.accept(chunk(transferId, "a.bin", 1)));
+        assembler.close();
+
+        // Chunk reentregue depois de um restart não abre uma transferência nova
+        assembler = new FileAssembler(downloads.toString());
+        assertNull(assembler.accept(chunk(transferId, "a.bin", 0)));
+        assertNull(assembler.accept(manifest(transferId, "a.bin")));
+        assertEquals(Arrays.asList("." + transferId + ".done", "a.bin"), downloadedFiles());
+    }
+}
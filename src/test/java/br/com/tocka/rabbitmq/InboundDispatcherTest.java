@@ -0,0 +1,202 @@
+package br.com.tocka.rabbitmq;
+
+import br.com.tocka.payload.PayloadProto.Content;
+import br.com.tocka.payload.PayloadProto.PayloadRequest;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Ordem dos acks/nacks do InboundDispatcher contra um channel falso que
+ * confere os delivery tags como o broker: ack ou nack de um tag que não está
+ * pendente fecha o channel (PRECONDITION_FAILED "unknown delivery tag").
+ */
+public class InboundDispatcherTest extends TestCase {
+
+    private static final String ASYNC_TYPE = "async";
+    private static final String UNKNOWN_TYPE = "sem_handler";
+
+    // Lado do broker: tags entregues e ainda não liquidados, e o que foi liquidado
+    private final TreeMap<Long, Boolean> outstanding = new TreeMap<>();
+    private final List<String> settlements = new ArrayList<>();
+    private String channelError;
+
+    private DeliverCallback deliverCallback;
+    private InboundDispatcher dispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicConsume":
+                            deliverCallback = (DeliverCallback) args[3];
+                            return "consumer";
+                        case "basicAck":
+                            settle("ack", (Long) args[0], (Boolean) args[1], false);
+                            return null;
+                        case "basicNack":
+                            settle("nack", (Long) args[0], (Boolean) args[1], (Boolean) args[2]);
+                            return null;
+                        case "isOpen":
+                            return channelErrorOrNull() == null;
+                        default:
+                            return null;
+                    }
+                });
+        Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> "createChannel".equals(method.getName()) ? channel : null);
+
+        dispatcher = new InboundDispatcher(connection, "InboundDispatcherTest");
+        dispatcher.consume("fila", 100);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dispatcher.close();
+    }
+
+    private synchronized String channelErrorOrNull() {
+        return channelError;
+    }
+
+    private synchronized void settle(String kind, long tag, boolean multiple, boolean requeue) {
+        if (channelError != null) {
+            return;
+        }
+        if (!outstanding.containsKey(tag)) {
+            channelError = "PRECONDITION_FAILED - unknown delivery tag " + tag + " (" + kind + ")";
+            return;
+        }
+        if (multiple) {
+            Map<Long, Boolean> covered = outstanding.headMap(tag, true);
+            for (Long coveredTag : covered.keySet()) {
+                settlements.add(kind + " " + coveredTag);
+            }
+            covered.clear();
+        } else {
+            outstanding.remove(tag);
+            settlements.add(kind + " " + tag + (requeue ? " requeue" : ""));
+        }
+    }
+
+    private void deliver(long tag, String type) throws Exception {
+        synchronized (this) {
+            outstanding.put(tag, Boolean.TRUE);
+        }
+        PayloadRequest payload = PayloadRequest.newBuilder()
+                .setEmmitter("alice")
+                .setContent(Content.newBuilder().setType(type).setBody(com.google.protobuf.ByteString.copyFromUtf8("oi")))
+                .build();
+        Envelope envelope = new Envelope(tag, false, "", "fila");
+        deliverCallback.handle("consumer", new Delivery(envelope, new AMQP.BasicProperties(), payload.toByteArray()));
+    }
+
+    private void awaitSettled() throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (this) {
+                if (channelError != null) {
+                    fail(channelError);
+                }
+                if (outstanding.isEmpty()) {
+                    return;
+                }
+            }
+            Thread.sleep(5);
+        }
+        fail("Entregas sem ack/nack: " + outstanding.keySet());
+    }
+
+    private synchronized List<String> settlements() {
+        return new ArrayList<>(settlements);
+    }
+
+    public void testFailingTagInTheMiddleIsNackedWithoutBreakingTheChannel() throws Exception {
+        dispatcher.register(InboundDispatcher.TEXT_TYPE, (delivery, payload, completion) -> completion.done());
+
+        deliver(1, InboundDispatcher.TEXT_TYPE);
+        deliver(2, InboundDispatcher.TEXT_TYPE);
+        deliver(3, UNKNOWN_TYPE);
+        deliver(4, InboundDispatcher.TEXT_TYPE);
+        deliver(5, InboundDispatcher.TEXT_TYPE);
+        awaitSettled();
+
+        assertEquals(list("ack 1", "ack 2", "nack 3", "ack 4", "ack 5"), settlements());
+    }
+
+    public void testLastTagFailingRightAfterCompletedOnes() throws Exception {
+        // Caso em que o ack múltiplo chegava a nomear o próprio tag com nack
+        dispatcher.register(InboundDispatcher.TEXT_TYPE, (delivery, payload, completion) -> completion.done());
+
+        deliver(1, InboundDispatcher.TEXT_TYPE);
+        deliver(2, UNKNOWN_TYPE);
+        awaitSettled();
+        deliver(3, InboundDispatcher.TEXT_TYPE);
+        awaitSettled();
+
+        assertEquals(list("ack 1", "nack 2", "ack 3"), settlements());
+    }
+
+    public void testOutOfOrderCompletionsAreAckedOnlyUpToTheOldestInFlight() throws Exception {
+        List<InboundDispatcher.Completion> pending = new CopyOnWriteArrayList<>();
+        dispatcher.register(ASYNC_TYPE, (delivery, payload, completion) -> pending.add(completion));
+
+        deliver(1, ASYNC_TYPE);
+        deliver(2, ASYNC_TYPE);
+        deliver(3, ASYNC_TYPE);
+        deliver(4, ASYNC_TYPE);
+        while (pending.size() < 4) {
+            Thread.sleep(5);
+        }
+
+        // Terminam fora de ordem, de outra thread; o 2 falha
+        Thread other = new Thread(() -> {
+            pending.get(3).done();
+            pending.get(1).fail();
+        });
+        other.start();
+        other.join();
+        Thread.sleep(50);
+        assertTrue("Nada pode ser liquidado com o tag 1 em andamento: " + settlements(), settlements().isEmpty());
+
+        pending.get(0).done();
+        pending.get(2).retry();
+        awaitSettled();
+
+        assertEquals(list("ack 1", "nack 2", "nack 3 requeue", "ack 4"), settlements());
+    }
+
+    public void testAckWaitsForTheBarrier() throws Exception {
+        List<String> order = new CopyOnWriteArrayList<>();
+        dispatcher.setAckBarrier(() -> order.add("barrier"));
+        dispatcher.register(InboundDispatcher.TEXT_TYPE, (delivery, payload, completion) -> {
+            order.add("handled");
+            completion.done();
+        });
+
+        deliver(1, InboundDispatcher.TEXT_TYPE);
+        awaitSettled();
+
+        assertEquals(list("handled", "barrier"), order);
+        assertEquals(list("ack 1"), settlements());
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
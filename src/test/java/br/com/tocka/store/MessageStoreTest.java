@@ -0,0 +1,167 @@
+package br.com.tocka.store;
+
+import br.com.tocka.model.ChatMessage;
+import br.com.tocka.model.HistoryEvent;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Recuperação do histórico depois de uma queda: registro do log pela metade,
+ * índice apontando além do fim do log e compactação dos índices quando a
+ * retenção apaga segmentos.
+ */
+public class MessageStoreTest extends TestCase {
+
+    private static final String CONVERSATION = "@bob";
+
+    private Path root;
+    private Path directory;
+    private MessageStore store;
+    private long timestamp = 1_000_000;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("message-store-test");
+        directory = root;
+        store = new MessageStore(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+    private StoredMessage append(String conversation, String text) throws IOException {
+        ChatMessage message = new ChatMessage("bob", "alice", "bob diz: " + text, timestamp++);
+        return store.append(conversation, HistoryEvent.Type.MESSAGE_RECEIVED, message);
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = new MessageStore(directory);
+    }
+
+    private static List<String> contents(List<StoredMessage> messages) {
+        List<String> contents = new ArrayList<>();
+        for (StoredMessage message : messages) {
+            contents.add(message.getMessage().getContent());
+        }
+        return contents;
+    }
+
+    private static void write(Path file, long position, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    private void append(Path file, byte[] data) throws IOException {
+        write(file, Files.size(file), data);
+    }
+
+    public void testTornFinalRecordIsDroppedOnReopen() throws Exception {
+        append(CONVERSATION, "um");
+        append(CONVERSATION, "dois");
+        StoredMessage torn = append(CONVERSATION, "tres");
+        store.close();
+
+        // Corpo do último registro pela metade: o CRC32C não confere mais
+        Path log = LogSegment.pathFor(directory.resolve("log"), 0);
+        write(log, torn.getOffset() + LogSegment.HEADER_BYTES + 12, new byte[]{0x55, 0x55, 0x55, 0x55});
+
+        store = new MessageStore(directory);
+        assertEquals(torn.getOffset(), store.getEndOffset());
+        assertEquals(2, store.getMessageCount(CONVERSATION));
+        assertNull(store.read(torn.getOffset()));
+        assertEquals(2, contents(store.tail(CONVERSATION, 10)).size());
+
+        // A próxima mensagem ocupa o lugar do registro perdido e sobrevive a outro reopen
+        StoredMessage next = append(CONVERSATION, "quatro");
+        assertEquals(torn.getOffset(), next.getOffset());
+        reopen();
+        List<String> tail = contents(store.tail(CONVERSATION, 10));
+        assertEquals(3, tail.size());
+        assertEquals("bob diz: quatro", tail.get(2));
+    }
+
+    public void testStaleIndexTailIsTruncatedOnReopen() throws Exception {
+        append(CONVERSATION, "um");
+        StoredMessage last = append(CONVERSATION, "dois");
+        long end = store.getEndOffset();
+        store.close();
+
+        // Entrada de um registro que não chegou ao log, mais uma entrada pela metade
+        Path index = ConversationIndex.pathFor(directory.resolve("index"), CONVERSATION);
+        ByteBuffer stale = ByteBuffer.allocate(ConversationIndex.ENTRY_BYTES + 7);
+        stale.putLong(timestamp + 100).putLong(end).put(new byte[7]);
+        append(index, stale.array());
+
+        store = new MessageStore(directory);
+        assertEquals(2, store.getMessageCount(CONVERSATION));
+        assertEquals(2L * ConversationIndex.ENTRY_BYTES, Files.size(index));
+        assertEquals(last.getOffset(), store.tail(CONVERSATION, 1).get(0).getOffset());
+
+        StoredMessage next = append(CONVERSATION, "tres");
+        assertEquals(end, next.getOffset());
+        assertEquals(3, store.getMessageCount(CONVERSATION));
+        assertEquals(contents(store.tail(CONVERSATION, 10)), contents(store.pageBeforeTime(CONVERSATION, Long.MAX_VALUE, 10)));
+    }
+
+    public void testIndexesSkipSegmentsDeletedBeforeCompaction() throws Exception {
+        store.close();
+        // Segmentos de 256 bytes, num diretório novo (o do setUp já tem um segmento de 16 MB)
+        directory = directory.resolve("pequeno");
+        store = new MessageStore(directory, 256, 100, 0);
+        List<StoredMessage> written = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            written.add(append(i % 2 == 0 ? CONVERSATION : "#equipe", "mensagem " + i));
+        }
+        store.close();
+
+        // Queda no meio da retenção: o segmento mais antigo sumiu, os índices ainda apontam para ele
+        Files.delete(LogSegment.pathFor(directory.resolve("log"), 0));
+
+        store = new MessageStore(directory, 256, 100, 0);
+        assertRetained(written);
+
+        // A retenção normal (menos segmentos permitidos) também compacta os índices
+        store.close();
+        store = new MessageStore(directory, 256, 2, 0);
+        assertRetained(written);
+    }
+
+    private void assertRetained(List<StoredMessage> written) throws IOException {
+        long start = store.getStartOffset();
+        assertTrue("Deveria haver segmentos apagados", start > 0);
+
+        List<String> retained = new ArrayList<>();
+        for (StoredMessage message : written) {
+            if (message.getOffset() >= start && message.getConversation().equals(CONVERSATION)) {
+                retained.add(message.getMessage().getContent());
+            }
+        }
+        // O índice só aponta para o que ainda está no log, e a página mais antiga termina nele
+        assertFalse(retained.isEmpty());
+        assertEquals(retained.size(), store.getMessageCount(CONVERSATION));
+        assertEquals(retained, contents(store.tail(CONVERSATION, 100)));
+        StoredMessage oldest = store.tail(CONVERSATION, 100).get(0);
+        assertTrue(store.pageBeforeOffset(CONVERSATION, oldest.getOffset(), 10).isEmpty());
+        assertEquals(retained.subList(0, 2), contents(store.pageBeforeTime(CONVERSATION, oldest.getMessage().getTimestampMicros() + 3, 10)));
+    }
+}
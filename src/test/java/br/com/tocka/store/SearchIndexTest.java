@@ -0,0 +1,142 @@
+package br.com.tocka.store;
+
+import br.com.tocka.model.ChatMessage;
+import br.com.tocka.model.HistoryEvent;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Busca antes e depois do merge de segmentos: cada close grava a memtable
+ * num segmento, e um segmento novo do tamanho do anterior é juntado a ele.
+ */
+public class SearchIndexTest extends TestCase {
+
+    private Path directory;
+    private Path searchDirectory;
+    private MessageStore store;
+    private long timestamp = 1_000_000;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("search-index-test");
+        searchDirectory = directory.resolve("search");
+        store = new MessageStore(directory.resolve("history"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+    private StoredMessage append(SearchIndex index, String conversation, String sender, String text) throws IOException {
+        ChatMessage message = new ChatMessage(sender, conversation, "@" + sender + " diz: " + text, timestamp++);
+        StoredMessage stored = store.append(conversation, HistoryEvent.Type.MESSAGE_RECEIVED, message);
+        index.add(stored);
+        return stored;
+    }
+
+    private int segmentCount() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(searchDirectory, "*" + SearchSegment.SUFFIX)) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<Long> offsets(List<SearchHit> hits) {
+        List<Long> offsets = new ArrayList<>();
+        for (SearchHit hit : hits) {
+            offsets.add(hit.getMessage().getOffset());
+        }
+        return offsets;
+    }
+
+    private static List<SearchHit> search(SearchIndex index, String query, String conversation) throws Exception {
+        return index.search(query, conversation, SearchIndex.DEFAULT_MAX_HITS).get(5, TimeUnit.SECONDS);
+    }
+
+    public void testResultsSurviveSegmentMerge() throws Exception {
+        SearchIndex first = new SearchIndex(searchDirectory, store);
+        StoredMessage report = append(first, "@bob", "bob", "relatório de vendas pronto");
+        StoredMessage lunch = append(first, "@bob", "bob", "vamos almoçar?");
+        StoredMessage groupReport = append(first, "#equipe", "ana", "o relatório está atrasado");
+        first.close();
+        assertEquals(1, segmentCount());
+
+        SearchIndex second = new SearchIndex(searchDirectory, store);
+        StoredMessage sales = append(second, "@bob", "bob", "vendas de março fecharam");
+        StoredMessage both = append(second, "#equipe", "ana", "relatório de vendas revisado");
+        StoredMessage other = append(second, "#equipe", "ana", "reunião amanhã cedo");
+
+        // Antes do merge: um segmento e a memtable
+        List<Long> beforeMerge = offsets(search(second, "relatório vendas", null));
+        second.close();
+        assertEquals("O segundo segmento deveria ter sido juntado ao primeiro", 1, segmentCount());
+
+        SearchIndex merged = new SearchIndex(searchDirectory, store);
+        try {
+            List<SearchHit> hits = search(merged, "relatório vendas", null);
+            assertEquals(beforeMerge, offsets(hits));
+
+            // Os dois termos primeiro (do mais novo para o mais antigo), depois um termo só
+            assertEquals(both.getOffset(), hits.get(0).getMessage().getOffset());
+            assertEquals(report.getOffset(), hits.get(1).getMessage().getOffset());
+            assertEquals(4, hits.size());
+            assertTrue(offsets(hits).contains(sales.getOffset()));
+            assertTrue(offsets(hits).contains(groupReport.getOffset()));
+            assertTrue(hits.get(0).getScore() > hits.get(2).getScore());
+
+            // Acento e maiúsculas não importam; termos dos dois segmentos antigos
+            assertEquals(offsets(hits), offsets(search(merged, "RELATORIO Vendas", null)));
+            assertEquals(1, search(merged, "almoçar", null).size());
+            assertEquals(lunch.getOffset(), search(merged, "almocar", null).get(0).getMessage().getOffset());
+            assertEquals(other.getOffset(), search(merged, "reunião", null).get(0).getMessage().getOffset());
+
+            // Filtro por conversa sobre o segmento juntado
+            List<Long> team = offsets(search(merged, "relatório", "#equipe"));
+            assertEquals(2, team.size());
+            assertEquals(both.getOffset(), (long) team.get(0));
+            assertEquals(groupReport.getOffset(), (long) team.get(1));
+
+            assertTrue(search(merged, "inexistente", null).isEmpty());
+            assertTrue(search(merged, "relatório", "@ninguem").isEmpty());
+        } finally {
+            merged.close();
+        }
+    }
+
+    public void testNewMessagesAfterMergeAreSearchable() throws Exception {
+        SearchIndex first = new SearchIndex(searchDirectory, store);
+        append(first, "@bob", "bob", "mensagem um");
+        first.close();
+        SearchIndex second = new SearchIndex(searchDirectory, store);
+        append(second, "@bob", "bob", "mensagem dois");
+        second.close();
+        assertEquals(1, segmentCount());
+
+        SearchIndex third = new SearchIndex(searchDirectory, store);
+        try {
+            StoredMessage latest = append(third, "@bob", "bob", "mensagem tres");
+            List<SearchHit> hits = search(third, "mensagem", null);
+            assertEquals(3, hits.size());
+            // Empate na pontuação: a mais recente primeiro, vinda da memtable
+            assertEquals(latest.getOffset(), hits.get(0).getMessage().getOffset());
+        } finally {
+            third.close();
+        }
+    }
+}